@@ -16,6 +16,8 @@
 
 package org.peergreen.vaadin.diagram;
 
+import java.util.Iterator;
+import java.util.ServiceLoader;
 import java.util.UUID;
 
 /**
@@ -25,6 +27,11 @@ import java.util.UUID;
  */
 public abstract class AbstractElement implements Element {
 
+    /**
+     * Generator used to build identifiers of new elements.
+     */
+    private static volatile ElementIdGenerator idGenerator = loadIdGenerator();
+
     /**
      * Element(s identifier.
      */
@@ -34,10 +41,43 @@ public abstract class AbstractElement implements Element {
      */
     private Diagram diagram;
 
+    protected AbstractElement() {
+        this.uuid = idGenerator.generateId();
+    }
+
     protected AbstractElement(final UUID uuid) {
         this.uuid = uuid.toString();
     }
 
+    /**
+     * @return the generator used to build identifiers of new elements.
+     */
+    public static ElementIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Replaces the generator used to build identifiers of new elements.
+     * @param generator the new generator
+     */
+    public static void setIdGenerator(final ElementIdGenerator generator) {
+        if (generator == null) {
+            throw new IllegalArgumentException("Generator cannot be null");
+        }
+        idGenerator = generator;
+    }
+
+    /**
+     * @return the first {@link ElementIdGenerator} service provider if any, the default generator otherwise.
+     */
+    private static ElementIdGenerator loadIdGenerator() {
+        Iterator<ElementIdGenerator> providers = ServiceLoader.load(ElementIdGenerator.class).iterator();
+        if (providers.hasNext()) {
+            return providers.next();
+        }
+        return new SequentialElementIdGenerator();
+    }
+
     @Override
     public boolean isAttached() {
         return diagram != null;
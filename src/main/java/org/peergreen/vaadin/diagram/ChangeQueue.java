@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.peergreen.vaadin.diagram.client.change.ChangeType;
+import org.peergreen.vaadin.diagram.client.change.ModelChange;
+
+/**
+ * Queue of model changes waiting to be sent to the client.
+ * Changes are coalesced when the queue is drained:
+ * <ul>
+ *     <li>an element created then deleted in the same queue is never sent,</li>
+ *     <li>successive updates of an entity collapse into the last one (or into its creation),</li>
+ *     <li>duplicated creations or deletions of the same element are only sent once.</li>
+ * </ul>
+ */
+class ChangeQueue implements Serializable {
+
+    /**
+     * Serial Version UID.
+     */
+    private static final long serialVersionUID = 2360851913584373519L;
+
+    private final List<ModelChange> changes = new ArrayList<ModelChange>();
+
+    public void add(final ModelChange change) {
+        changes.add(change);
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Empties the queue.
+     * @return the coalesced list of changes, in their original order
+     */
+    public List<ModelChange> drain() {
+        List<ModelChange> result = new ArrayList<ModelChange>(changes.size());
+
+        // Position (in result) of the creations / updates that may still be cancelled
+        Map<Integer, Integer> created = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> updated = new HashMap<Integer, Integer>();
+        Set<Integer> deleted = new HashSet<Integer>();
+
+        for (ModelChange change : changes) {
+            int id = change.getId();
+            ChangeType type = change.getType();
+            if (isCreation(type)) {
+                if (created.containsKey(id)) {
+                    // Already created in this queue
+                    continue;
+                }
+                deleted.remove(id);
+                created.put(id, result.size());
+                result.add(change);
+            } else if (type == ChangeType.UPDATE_ENTITY) {
+                Integer creation = created.get(id);
+                if (creation != null) {
+                    // Fold the update into the pending creation
+                    result.get(creation).setName(change.getName());
+                    continue;
+                }
+                Integer previous = updated.put(id, result.size());
+                if (previous != null) {
+                    result.set(previous, null);
+                }
+                result.add(change);
+            } else {
+                if (deleted.contains(id)) {
+                    // Already deleted in this queue
+                    continue;
+                }
+                Integer previous = updated.remove(id);
+                if (previous != null) {
+                    result.set(previous, null);
+                }
+                Integer creation = created.remove(id);
+                if (creation != null) {
+                    // Created then deleted: the client never needs to know about it
+                    result.set(creation, null);
+                    continue;
+                }
+                deleted.add(id);
+                result.add(change);
+            }
+        }
+        changes.clear();
+
+        List<ModelChange> coalesced = new ArrayList<ModelChange>(result.size());
+        for (ModelChange change : result) {
+            if (change != null) {
+                coalesced.add(change);
+            }
+        }
+        return coalesced;
+    }
+
+    private static boolean isCreation(final ChangeType type) {
+        switch (type) {
+            case CREATE_ENTITY:
+            case CREATE_COMPARTMENT:
+            case CREATE_REQUIRE:
+            case CREATE_PROVIDE:
+            case CREATE_CONNECTOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
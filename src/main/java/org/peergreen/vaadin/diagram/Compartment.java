@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 
 import com.vaadin.server.StreamResource;
 
@@ -40,7 +39,7 @@ public class Compartment extends AbstractElement {
     private final List<Require> requires = new ArrayList<Require>();
 
     public Compartment(final String name) {
-        super(UUID.randomUUID());
+        super();
         this.name = name;
     }
 
@@ -16,8 +16,6 @@
 
 package org.peergreen.vaadin.diagram;
 
-import java.util.UUID;
-
 /**
  * User: guillaume
  * Date: 05/11/13
@@ -29,7 +27,7 @@ public class Connector extends AbstractElement {
     private Port target;
 
     public Connector(Port source, Port target) {
-        super(UUID.randomUUID());
+        super();
         this.source = source;
         this.target = target;
     }
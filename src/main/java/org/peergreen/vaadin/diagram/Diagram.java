@@ -18,13 +18,19 @@ package org.peergreen.vaadin.diagram;
 
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.EventObject;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.peergreen.vaadin.diagram.client.DiagramComponentState;
 import org.peergreen.vaadin.diagram.client.IDiagramClientRpc;
 import org.peergreen.vaadin.diagram.client.IDiagramServerRpc;
+import org.peergreen.vaadin.diagram.client.RenderQuality;
+import org.peergreen.vaadin.diagram.client.change.ChangeType;
+import org.peergreen.vaadin.diagram.client.change.ModelChange;
 
 import com.vaadin.event.dd.DropHandler;
 import com.vaadin.event.dd.DropTarget;
@@ -45,9 +51,14 @@ import com.vaadin.util.ReflectTools;
 public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarget, LegacyComponent {
 
     /**
-     * Attached elements.
+     * Attached elements, indexed by their handle.
      */
-    private final Map<String, Element> elements = new HashMap<String, Element>();
+    private final ElementHandles elements = new ElementHandles();
+
+    /**
+     * Attached entities, in the order they were added.
+     */
+    private final List<Entity> entities = new ArrayList<Entity>();
 
     /**
      *
@@ -62,6 +73,36 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
 
     private final IDiagramClientRpc clientRPC = getRpcProxy(IDiagramClientRpc.class);
 
+    /**
+     * Changes waiting to be sent to the client.
+     */
+    private final ChangeQueue pendingChanges = new ChangeQueue();
+
+    /**
+     * Nesting level of update scopes, changes are only sent when it goes back to 0.
+     */
+    private int updateDepth = 0;
+
+    /**
+     * Sequence number of the last change set sent to the client.
+     */
+    private int sequence = 0;
+
+    /**
+     * The client asked for a new snapshot.
+     */
+    private boolean resyncRequested = false;
+
+    /**
+     * The shared state holds a snapshot that has been sent, it is released the next time the state is sent.
+     */
+    private boolean snapshotSent = false;
+
+    /**
+     * Quality last reported by the client.
+     */
+    private RenderQuality renderQuality = RenderQuality.HIGH;
+
 	public Diagram() {
 	    // Drop handler
         this.dropHandler = new DiagramDropHandler(this);
@@ -70,23 +111,23 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
 		registerRpc(new IDiagramServerRpc() {
 
             @Override
-            public void selected(final String uuid) {
-                fireSelected(uuid);
+            public void selected(final int handle) {
+                fireSelected(handle);
             }
 
             @Override
-            public void deleted(final String uuid) {
-                fireDeleted(uuid);
+            public void deleted(final int handle) {
+                fireDeleted(handle);
             }
 
             @Override
-            public void createConnector(final String sourceUuid, final String targetUuid) {
-                fireConnectorCreation(sourceUuid, targetUuid);
+            public void createConnector(final int sourceHandle, final int targetHandle) {
+                fireConnectorCreation(sourceHandle, targetHandle);
             }
 
             @Override
-            public void dropTarget(final String uuid, final String data) {
-                fireDropped(uuid, data);
+            public void dropTarget(final int handle, final String data) {
+                fireDropped(handle, data);
             }
 
             @Override
@@ -94,10 +135,30 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
                 fireLog(message);
             }
 
+            @Override
+            public void resync() {
+                resyncRequested = true;
+                markAsDirty();
+            }
+
+            @Override
+            public void renderStatistics(final RenderQuality quality, final int frames,
+                                         final double averagePaintTime, final double maxPaintTime) {
+                renderQuality = quality;
+                fireEvent(new RenderStatisticsEvent(Diagram.this, quality, frames, averagePaintTime, maxPaintTime));
+            }
+
         });
         addSharedResource(Compartment.DEFAULT_ICON_TYPE, new ClassResource("ovf-icon.png"));
 	}
 
+    /**
+     * @return the quality last reported by the client to draw the diagram
+     */
+    public RenderQuality getRenderQuality() {
+        return renderQuality;
+    }
+
     private void fireLog(final String message) {
         fireEvent(new LogEvent(message));
     }
@@ -106,24 +167,21 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
         setResource(name, resource);
     }
 
-    private void fireDropped(final String uuid, final String data) {
-        Element e = null;
-        if (elements.containsKey(uuid)) {
-            e = elements.get(uuid);
-        }
+    private void fireDropped(final int handle, final String data) {
+        Element e = elements.get(handle);
         fireEvent(new DroppedEvent(this, e, data));
     }
 
-    private void fireDeleted(final String uuid) {
-        Element e = elements.get(uuid);
+    private void fireDeleted(final int handle) {
+        Element e = elements.get(handle);
         if (e != null) {
             fireEvent(new DeletedEvent(e));
         }
     }
 
-    private void fireConnectorCreation(final String sourceUuid, final String targetUuid) {
-        Element source = elements.get(sourceUuid);
-        Element target = elements.get(targetUuid);
+    private void fireConnectorCreation(final int sourceHandle, final int targetHandle) {
+        Element source = elements.get(sourceHandle);
+        Element target = elements.get(targetHandle);
 
         // Need valid uuid/elements
         if ((source != null) && (target != null)) {
@@ -134,8 +192,8 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
         }
     }
 
-    private void fireSelected(final String uuid) {
-        Element e = elements.get(uuid);
+    private void fireSelected(final int handle) {
+        Element e = elements.get(handle);
         if (e != null) {
             fireEvent(new SelectedEvent(e));
         }
@@ -146,124 +204,376 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
 		return (DiagramComponentState) super.getState();
 	}
 
+    /**
+     * Sends a snapshot of the whole model when the client side is (re)initialized or when it asked for it.
+     * Change sets sent afterwards are tagged with a sequence number following the snapshot one.
+     * Once sent, the snapshot is released: the client only reads it when its version changes.
+     */
+    @Override
+    public void beforeClientResponse(final boolean initial) {
+        super.beforeClientResponse(initial);
+        if (initial || resyncRequested) {
+            resyncRequested = false;
+            if (initial) {
+                // A new client side: no event can refer to the previous handles
+                elements.compact();
+            }
+            DiagramComponentState state = getState();
+            state.snapshot = buildSnapshot();
+            state.snapshotSequence = sequence;
+            state.snapshotVersion++;
+            snapshotSent = true;
+        } else if (snapshotSent) {
+            snapshotSent = false;
+            getState().snapshot = new ArrayList<ModelChange>();
+        }
+    }
+
+    /**
+     * @return the list of creations needed to rebuild the current model on the client side.
+     */
+    private List<ModelChange> buildSnapshot() {
+        List<ModelChange> snapshot = new ArrayList<ModelChange>();
+        List<Port> ports = new ArrayList<Port>();
+        for (Entity entity : entities) {
+            snapshot.add(ModelChange.createEntity(handle(entity), entity.getName()));
+            for (Compartment compartment : entity.getCompartments()) {
+                if (!compartment.isAttached()) {
+                    continue;
+                }
+                snapshot.add(ModelChange.createCompartment(
+                        handle(entity),
+                        handle(compartment),
+                        compartment.getName(),
+                        compartment.getIconType()
+                ));
+                for (Require require : compartment.getRequires()) {
+                    if (require.isAttached()) {
+                        snapshot.add(ModelChange.createRequire(handle(compartment), handle(require), require.getName()));
+                        ports.add(require);
+                    }
+                }
+                for (Provide provide : compartment.getProvides()) {
+                    if (provide.isAttached()) {
+                        snapshot.add(ModelChange.createProvide(handle(compartment), handle(provide), provide.getName()));
+                        ports.add(provide);
+                    }
+                }
+            }
+        }
+
+        // Connectors come last, once all the ports are known
+        Set<Integer> connectors = new HashSet<Integer>();
+        for (Port port : ports) {
+            for (Connector connector : port.getConnectors()) {
+                if (connector.isAttached()
+                        && connector.getSource().isAttached()
+                        && connector.getTarget().isAttached()
+                        && connectors.add(handle(connector))) {
+                    snapshot.add(ModelChange.createConnector(
+                            handle(connector),
+                            handle(connector.getSource()),
+                            handle(connector.getTarget())
+                    ));
+                }
+            }
+        }
+        return snapshot;
+    }
+
     public void addEntity(Entity entity) {
-        attach(entity);
-        String uuid = entity.getUuid();
-        clientRPC.createEntity(uuid, entity.getName());
-        for (Compartment compartment : entity.getCompartments()) {
-            addCompartment(entity, compartment);
+        openUpdate();
+        try {
+            attach(entity);
+            entities.add(entity);
+            publish(ModelChange.createEntity(handle(entity), entity.getName()));
+            for (Compartment compartment : entity.getCompartments()) {
+                addCompartment(entity, compartment);
+            }
+        } finally {
+            closeUpdate();
         }
     }
 
     public void removeEntity(Entity entity) {
-        for (Compartment compartment : entity.getCompartments()) {
-            entity.removeCompartment(compartment);
+        if (handle(entity) == ElementHandles.NO_HANDLE) {
+            // Not attached or already removed
+            return;
+        }
+        openUpdate();
+        try {
+            for (Compartment compartment : entity.getCompartments()) {
+                entity.removeCompartment(compartment);
+            }
+            publish(new ModelChange(ChangeType.DELETE_ENTITY, handle(entity)));
+            entities.remove(entity);
+            detach(entity);
+        } finally {
+            closeUpdate();
         }
-        clientRPC.deleteEntity(entity.getUuid());
-        detach(entity);
     }
 
     public void updateEntity(Entity entity, String name) {
-        clientRPC.updateEntity(entity.getUuid(), name);
+        if (handle(entity) == ElementHandles.NO_HANDLE) {
+            // Not attached
+            return;
+        }
+        openUpdate();
+        try {
+            publish(ModelChange.updateEntity(handle(entity), name));
+        } finally {
+            closeUpdate();
+        }
     }
 
 
     private void attach(final Element element) {
         element.attach(this);
-        elements.put(element.getUuid(), element);
+        elements.register(element);
     }
 
     private void detach(final Element element) {
         element.detach();
-        elements.remove(element.getUuid());
+        elements.unregister(element);
+    }
+
+    /**
+     * @param element an element
+     * @return the handle identifying the element on the client side
+     */
+    private int handle(final Element element) {
+        return elements.getHandle(element);
+    }
+
+    /**
+     * Opens an update scope: changes published until the matching {@link #closeUpdate()} are
+     * grouped and sent to the client in a single RPC call.
+     */
+    private void openUpdate() {
+        updateDepth++;
+    }
+
+    /**
+     * Closes an update scope. When the outermost scope is closed, pending changes are coalesced and sent.
+     */
+    private void closeUpdate() {
+        updateDepth--;
+        if (updateDepth == 0) {
+            if (!pendingChanges.isEmpty()) {
+                List<ModelChange> changes = pendingChanges.drain();
+                if (!changes.isEmpty()) {
+                    sequence++;
+                    clientRPC.applyChanges(sequence, changes);
+                    elements.changesSent();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a batch of updates: until the matching {@link #commitUpdate()}, changes made on the diagram
+     * or on its elements are queued instead of being sent to the client.
+     * Batches can be nested, changes are sent when the outermost batch is committed.
+     */
+    public void beginUpdate() {
+        openUpdate();
+    }
+
+    /**
+     * Commits the current batch of updates.
+     * If this is the outermost batch, queued changes are coalesced and sent to the client in one message.
+     * @throws IllegalStateException if there is no batch in progress
+     */
+    public void commitUpdate() {
+        if (updateDepth == 0) {
+            throw new IllegalStateException("No update in progress");
+        }
+        closeUpdate();
+    }
+
+    /**
+     * Runs the given task in a batch of updates (see {@link #beginUpdate()}).
+     * The batch is committed even if the task fails.
+     * @param task the task updating the diagram
+     */
+    public void batch(final Runnable task) {
+        beginUpdate();
+        try {
+            task.run();
+        } finally {
+            commitUpdate();
+        }
+    }
+
+    private void publish(final ModelChange change) {
+        pendingChanges.add(change);
     }
 
     public void addCompartment(final Entity entity, final Compartment compartment) {
         if (!entity.isAttached()) {
             addEntity(entity);
         } else {
-            attach(compartment);
-            String cId = compartment.getUuid();
-            clientRPC.createCompartment(entity.getUuid(), cId, compartment.getName(), compartment.getIconType());
-            for (Require require : compartment.getRequires()) {
-                addRequire(compartment, require);
-            }
-            for (Provide provide : compartment.getProvides()) {
-                addProvide(compartment, provide);
+            openUpdate();
+            try {
+                attach(compartment);
+                publish(ModelChange.createCompartment(
+                        handle(entity),
+                        handle(compartment),
+                        compartment.getName(),
+                        compartment.getIconType()
+                ));
+                for (Require require : compartment.getRequires()) {
+                    addRequire(compartment, require);
+                }
+                for (Provide provide : compartment.getProvides()) {
+                    addProvide(compartment, provide);
+                }
+            } finally {
+                closeUpdate();
             }
         }
     }
 
     public void removeCompartment(final Entity entity, final Compartment compartment) {
-        for (Provide provide : compartment.getProvides()) {
-            compartment.removeProvide(provide);
+        if (handle(compartment) == ElementHandles.NO_HANDLE) {
+            // Not attached or already removed
+            return;
         }
-        for (Require require : compartment.getRequires()) {
-            compartment.removeRequire(require);
+        openUpdate();
+        try {
+            for (Provide provide : compartment.getProvides()) {
+                compartment.removeProvide(provide);
+            }
+            for (Require require : compartment.getRequires()) {
+                compartment.removeRequire(require);
+            }
+            publish(new ModelChange(ChangeType.DELETE_COMPARTMENT, handle(compartment)));
+            detach(compartment);
+        } finally {
+            closeUpdate();
         }
-        clientRPC.deleteCompartment(compartment.getUuid());
-        detach(compartment);
     }
 
     public void addProvide(final Compartment compartment, final Provide provide) {
         if (compartment.isAttached()) {
-            attach(provide);
-            clientRPC.createProvide(
-                    compartment.getUuid(),
-                    provide.getUuid(),
-                    provide.getName()
-            );
-            for (Connector connector : provide.getConnectors()) {
-                addConnector(connector);
+            openUpdate();
+            try {
+                attach(provide);
+                publish(ModelChange.createProvide(
+                        handle(compartment),
+                        handle(provide),
+                        provide.getName()
+                ));
+                for (Connector connector : provide.getConnectors()) {
+                    addConnector(connector);
+                }
+            } finally {
+                closeUpdate();
             }
         }
     }
 
     public void removeProvide(final Compartment compartment, final Provide provide) {
-        // Disconnect all connectors to this port
-        provide.disconnect(provide);
-        clientRPC.deleteProvide(provide.getUuid());
-        detach(provide);
+        if (handle(provide) == ElementHandles.NO_HANDLE) {
+            // Not attached or already removed
+            return;
+        }
+        openUpdate();
+        try {
+            // Disconnect all connectors to this port
+            provide.disconnect(provide);
+            publish(new ModelChange(ChangeType.DELETE_PROVIDE, handle(provide)));
+            detach(provide);
+        } finally {
+            closeUpdate();
+        }
     }
 
     public void addRequire(final Compartment compartment, final Require require) {
         if (compartment.isAttached()) {
-            attach(require);
-            clientRPC.createRequire(
-                    compartment.getUuid(),
-                    require.getUuid(),
-                    require.getName()
-            );
-            for (Connector connector : require.getConnectors()) {
-                addConnector(connector);
+            openUpdate();
+            try {
+                attach(require);
+                publish(ModelChange.createRequire(
+                        handle(compartment),
+                        handle(require),
+                        require.getName()
+                ));
+                for (Connector connector : require.getConnectors()) {
+                    addConnector(connector);
+                }
+            } finally {
+                closeUpdate();
             }
-
         }
     }
 
     public void removeRequire(final Compartment compartment, final Require require) {
-        // Disconnect all connectors to this port
-        require.disconnect(require);
-        clientRPC.deleteRequire(require.getUuid());
-        detach(require);
+        if (handle(require) == ElementHandles.NO_HANDLE) {
+            // Not attached or already removed
+            return;
+        }
+        openUpdate();
+        try {
+            // Disconnect all connectors to this port
+            require.disconnect(require);
+            publish(new ModelChange(ChangeType.DELETE_REQUIRE, handle(require)));
+            detach(require);
+        } finally {
+            closeUpdate();
+        }
     }
 
     public void addConnector(final Connector connector) {
-        attach(connector);
-        clientRPC.createConnector(
-                connector.getUuid(),
-                connector.getSource().getUuid(),
-                connector.getTarget().getUuid()
-        );
+        if (handle(connector) != ElementHandles.NO_HANDLE) {
+            // Already added: both ports add their connectors
+            return;
+        }
+        if (handle(connector.getSource()) == ElementHandles.NO_HANDLE
+                || handle(connector.getTarget()) == ElementHandles.NO_HANDLE) {
+            // Added when its second port is attached
+            return;
+        }
+        openUpdate();
+        try {
+            attach(connector);
+            publish(ModelChange.createConnector(
+                    handle(connector),
+                    handle(connector.getSource()),
+                    handle(connector.getTarget())
+            ));
+        } finally {
+            closeUpdate();
+        }
     }
 
     public void removeConnector(final Connector connector) {
-        clientRPC.deleteConnector(connector.getUuid());
-        detach(connector);
+        if (handle(connector) == ElementHandles.NO_HANDLE) {
+            // Already removed: both ports remove their connectors when disconnected
+            return;
+        }
+        openUpdate();
+        try {
+            publish(new ModelChange(ChangeType.DELETE_CONNECTOR, handle(connector)));
+            detach(connector);
+        } finally {
+            closeUpdate();
+        }
     }
 
+    /**
+     * Removes all the entities. The deletions go through the change stream like any other change, so the
+     * client model, the handles and the sequence numbers stay consistent with the server.
+     */
     public void reset() {
-        clientRPC.reset();
+        openUpdate();
+        try {
+            for (Entity entity : new ArrayList<Entity>(entities)) {
+                removeEntity(entity);
+            }
+        } finally {
+            closeUpdate();
+        }
     }
 
     public void init() {
@@ -298,6 +608,74 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
         clientRPC.handleDrop(x, y, data);
     }
 
+    /**
+     * Defines the zoom levels under which the diagram is drawn with less details.
+     * The scale is the number of screen pixels per diagram unit (1.0 when not zoomed).
+     * @param lowDetailScale under this scale, entities are drawn as plain boxes and connectors as thin lines
+     * @param mediumDetailScale under this scale, ports are drawn without their names
+     * @throws IllegalArgumentException if the low detail scale is greater than the medium one
+     */
+    public void setDetailThresholds(final double lowDetailScale, final double mediumDetailScale) {
+        if (lowDetailScale > mediumDetailScale) {
+            throw new IllegalArgumentException("Low detail scale " + lowDetailScale + " is greater than the medium detail scale " + mediumDetailScale);
+        }
+        getState().lowDetailScale = lowDetailScale;
+        getState().mediumDetailScale = mediumDetailScale;
+    }
+
+    public double getLowDetailScale() {
+        return getState().lowDetailScale;
+    }
+
+    public double getMediumDetailScale() {
+        return getState().mediumDetailScale;
+    }
+
+    /**
+     * Defines the memory budget of the client cache of entity bitmaps.
+     * @param pixels maximum number of cached pixels (4 bytes each), 0 disables the cache
+     */
+    public void setEntityCacheBudget(final int pixels) {
+        if (pixels < 0) {
+            throw new IllegalArgumentException("Negative entity cache budget " + pixels);
+        }
+        getState().entityCacheBudget = pixels;
+    }
+
+    public int getEntityCacheBudget() {
+        return getState().entityCacheBudget;
+    }
+
+    /**
+     * Defines the maximum size of the backing store of the client canvases. On HiDPI displays, the canvases use
+     * several pixels for a CSS pixel within this limit.
+     * @param pixels maximum number of pixels of a canvas (4 bytes each)
+     */
+    public void setMaxCanvasPixels(final int pixels) {
+        if (pixels <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of canvas pixels " + pixels);
+        }
+        getState().maxCanvasPixels = pixels;
+    }
+
+    public int getMaxCanvasPixels() {
+        return getState().maxCanvasPixels;
+    }
+
+    /**
+     * Enables the pick buffer: the client draws each element in a hidden canvas with a color identifying it, the
+     * element under the mouse is then exact for any shape (curves, triangles). Disabled by default, the geometric
+     * hit-testing is used.
+     * @param enabled true to find the elements with the pick buffer
+     */
+    public void setPickBufferEnabled(final boolean enabled) {
+        getState().pickBufferEnabled = enabled;
+    }
+
+    public boolean isPickBufferEnabled() {
+        return getState().pickBufferEnabled;
+    }
+
     public interface ElementSelectionListener extends Serializable {
         public static final Method ELEMENT_SELECTED_METHOD = ReflectTools
                 .findMethod(ElementSelectionListener.class, "selected",
@@ -338,6 +716,14 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
         void log(LogEvent event);
     }
 
+    public interface RenderStatisticsListener extends Serializable {
+        public static final Method RENDER_STATISTICS_METHOD = ReflectTools
+                .findMethod(RenderStatisticsListener.class, "renderStatistics",
+                        RenderStatisticsEvent.class);
+
+        void renderStatistics(RenderStatisticsEvent event);
+    }
+
     public static class SelectedEvent extends EventObject {
 
         private SelectedEvent(final Element element) {
@@ -410,6 +796,51 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
             return (String) getSource();
         }
     }
+
+    /**
+     * Paint statistics reported by the client, when its quality changes and periodically while it paints.
+     */
+    public static class RenderStatisticsEvent extends EventObject {
+
+        private final RenderQuality quality;
+        private final int frames;
+        private final double averagePaintTime;
+        private final double maxPaintTime;
+
+        private RenderStatisticsEvent(final Diagram diagram, final RenderQuality quality, final int frames,
+                                      final double averagePaintTime, final double maxPaintTime) {
+            super(diagram);
+            this.quality = quality;
+            this.frames = frames;
+            this.averagePaintTime = averagePaintTime;
+            this.maxPaintTime = maxPaintTime;
+        }
+
+        public RenderQuality getQuality() {
+            return quality;
+        }
+
+        /**
+         * @return number of paints of the scene or of the connectors since the previous report
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return average duration of the paints (in milliseconds)
+         */
+        public double getAveragePaintTime() {
+            return averagePaintTime;
+        }
+
+        /**
+         * @return longest paint (in milliseconds)
+         */
+        public double getMaxPaintTime() {
+            return maxPaintTime;
+        }
+    }
     public void addSelectionListener(ElementSelectionListener listener) {
         this.addListener(SelectedEvent.class, listener, ElementSelectionListener.ELEMENT_SELECTED_METHOD);
     }
@@ -450,6 +881,14 @@ public class Diagram extends com.vaadin.ui.AbstractComponent implements DropTarg
         this.removeListener(LogEvent.class, listener);
     }
 
+    public void addRenderStatisticsListener(RenderStatisticsListener listener) {
+        this.addListener(RenderStatisticsEvent.class, listener, RenderStatisticsListener.RENDER_STATISTICS_METHOD);
+    }
+
+    public void removeRenderStatisticsListener(RenderStatisticsListener listener) {
+        this.removeListener(RenderStatisticsEvent.class, listener);
+    }
+
     @Override
     public DropHandler getDropHandler() {
         return dropHandler;
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns an integer handle to each element attached to a diagram.
+ * Handles are used in the client/server protocol and as client-side keys, UUIDs stay on the server API.
+ * The handle of a deleted element is not reused right away: it is only reused in a change set following the
+ * one carrying the deletion, once the client has been told about it (see {@link #changesSent()}).
+ * Handles are made dense again by {@link #compact()}, when the client rebuilds its whole model.
+ */
+class ElementHandles implements Serializable {
+
+    /**
+     * Serial Version UID.
+     */
+    private static final long serialVersionUID = -3374640215649463734L;
+
+    /**
+     * Handle used when an element is unknown.
+     */
+    public static final int NO_HANDLE = -1;
+
+    /**
+     * Elements, indexed by their handle ({@literal null} for unused handles).
+     */
+    private final List<Element> elements = new ArrayList<Element>();
+
+    private final Map<String, Integer> handles = new HashMap<String, Integer>();
+
+    /**
+     * Handles released since the last change set has been sent.
+     */
+    private final List<Integer> released = new ArrayList<Integer>();
+
+    /**
+     * Handles that can be assigned again.
+     */
+    private final List<Integer> free = new ArrayList<Integer>();
+
+    /**
+     * Assigns a handle to the given element (if it does not already have one).
+     * @param element the attached element
+     * @return the element's handle
+     */
+    public int register(final Element element) {
+        Integer existing = handles.get(element.getUuid());
+        if (existing != null) {
+            return existing;
+        }
+        int handle;
+        if (free.isEmpty()) {
+            handle = elements.size();
+            elements.add(element);
+        } else {
+            handle = free.remove(free.size() - 1);
+            elements.set(handle, element);
+        }
+        handles.put(element.getUuid(), handle);
+        return handle;
+    }
+
+    /**
+     * Releases the handle of the given element.
+     * @param element the detached element
+     */
+    public void unregister(final Element element) {
+        Integer handle = handles.remove(element.getUuid());
+        if (handle != null) {
+            elements.set(handle, null);
+            released.add(handle);
+        }
+    }
+
+    /**
+     * Called once a change set has been sent: the handles released until now can be reused by the next ones.
+     */
+    public void changesSent() {
+        free.addAll(released);
+        released.clear();
+    }
+
+    /**
+     * Assigns new consecutive handles to the attached elements, in the order of their current handles.
+     * Only to be called when the client receives a new snapshot and forgets all the previous handles.
+     */
+    public void compact() {
+        int handle = 0;
+        for (int i = 0; i < elements.size(); i++) {
+            Element element = elements.get(i);
+            if (element != null) {
+                elements.set(handle, element);
+                handles.put(element.getUuid(), handle);
+                handle++;
+            }
+        }
+        elements.subList(handle, elements.size()).clear();
+        released.clear();
+        free.clear();
+    }
+
+    /**
+     * @param element an element
+     * @return the handle of the element or {@link #NO_HANDLE} if it is not attached
+     */
+    public int getHandle(final Element element) {
+        Integer handle = handles.get(element.getUuid());
+        if (handle == null) {
+            return NO_HANDLE;
+        }
+        return handle;
+    }
+
+    /**
+     * @param handle an element's handle
+     * @return the element or {@literal null} if the handle is unknown
+     */
+    public Element get(final int handle) {
+        if (handle < 0 || handle >= elements.size()) {
+            return null;
+        }
+        return elements.get(handle);
+    }
+}
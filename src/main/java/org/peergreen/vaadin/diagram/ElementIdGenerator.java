@@ -0,0 +1,31 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram;
+
+/**
+ * Generates the unique identifiers of diagram elements.
+ * Implementations have to be thread safe: elements may be created concurrently by many sessions.
+ * A custom implementation can be registered with {@link AbstractElement#setIdGenerator(ElementIdGenerator)}
+ * or declared as a {@link java.util.ServiceLoader} provider
+ * ({@code META-INF/services/org.peergreen.vaadin.diagram.ElementIdGenerator}).
+ */
+public interface ElementIdGenerator {
+
+    /**
+     * @return a new identifier, unique among all the elements of the application.
+     */
+    String generateId();
+}
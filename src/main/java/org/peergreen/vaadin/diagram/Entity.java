@@ -18,7 +18,6 @@ package org.peergreen.vaadin.diagram;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * User: guillaume
@@ -31,7 +30,7 @@ public class Entity extends AbstractElement {
     private final List<Compartment> compartments = new ArrayList<Compartment>();
 
     public Entity(final String name) {
-        super(UUID.randomUUID());
+        super();
         this.name = name;
     }
 
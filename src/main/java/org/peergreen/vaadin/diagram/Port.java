@@ -18,7 +18,6 @@ package org.peergreen.vaadin.diagram;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * User: guillaume
@@ -32,7 +31,7 @@ public abstract class Port extends AbstractElement {
     private List<Connector> connectors = new ArrayList<Connector>();
 
     public Port(final String name) {
-        super(UUID.randomUUID());
+        super();
         this.name = name;
     }
 
@@ -64,16 +63,47 @@ public abstract class Port extends AbstractElement {
 
     protected void connect(Port target) {
         Connector connector = new Connector(this, target);
-        addConnector(connector);
-        target.addConnector(connector);
+        // Both ports are updated in a single change set
+        Diagram diagram = getDiagram(target);
+        if (diagram != null) {
+            diagram.beginUpdate();
+        }
+        try {
+            addConnector(connector);
+            target.addConnector(connector);
+        } finally {
+            if (diagram != null) {
+                diagram.commitUpdate();
+            }
+        }
     }
 
     public void disconnect(Port extremity) {
-        for (Connector connector : getConnectors()) {
-            if (connector.getSource().equals(extremity) || connector.getTarget().equals(extremity)) {
-                removeConnector(connector);
-                extremity.removeConnector(connector);
+        Diagram diagram = getDiagram(extremity);
+        if (diagram != null) {
+            diagram.beginUpdate();
+        }
+        try {
+            for (Connector connector : getConnectors()) {
+                if (connector.getSource().equals(extremity) || connector.getTarget().equals(extremity)) {
+                    removeConnector(connector);
+                    extremity.removeConnector(connector);
+                }
+            }
+        } finally {
+            if (diagram != null) {
+                diagram.commitUpdate();
             }
         }
     }
+
+    /**
+     * @return the diagram of this port or of the other one (null if none of them is attached)
+     */
+    private Diagram getDiagram(final Port other) {
+        if (isAttached()) {
+            return getDiagram();
+        }
+        return other.getDiagram();
+    }
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default {@link ElementIdGenerator}: fast, non cryptographic identifiers.
+ * An identifier is made of a random node prefix (drawn once per generator) and a sequence number.
+ * Each thread reserves blocks of sequence numbers from a shared counter and then increments its own
+ * counter, so the shared state is only touched once per block.
+ * Identifiers keep the UUID string format.
+ */
+public class SequentialElementIdGenerator implements ElementIdGenerator {
+
+    /**
+     * Number of sequence numbers reserved by a thread at once.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    private final long node;
+
+    private final AtomicLong blocks = new AtomicLong();
+
+    /**
+     * Per-thread range of reserved sequence numbers: [next, end[.
+     * A plain ThreadLocal (no subclass) so that pooled threads do not keep a reference to the webapp classloader.
+     */
+    private final ThreadLocal<long[]> ranges = new ThreadLocal<long[]>();
+
+    public SequentialElementIdGenerator() {
+        this(new SecureRandom().nextLong());
+    }
+
+    /**
+     * @param node prefix shared by all the identifiers of this generator (should differ between nodes of a cluster)
+     */
+    public SequentialElementIdGenerator(final long node) {
+        this.node = node;
+    }
+
+    @Override
+    public String generateId() {
+        long[] range = ranges.get();
+        if (range == null) {
+            range = new long[2];
+            ranges.set(range);
+        }
+        if (range[0] == range[1]) {
+            long start = blocks.getAndIncrement() * BLOCK_SIZE;
+            range[0] = start;
+            range[1] = start + BLOCK_SIZE;
+        }
+        return new UUID(node, range[0]++).toString();
+    }
+}
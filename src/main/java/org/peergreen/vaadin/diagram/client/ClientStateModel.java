@@ -16,12 +16,18 @@
 package org.peergreen.vaadin.diagram.client;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.MutableScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.coordinates.ScaledPoint;
+import org.peergreen.vaadin.diagram.client.select.ISelectable;
 import org.peergreen.vaadin.diagram.client.ui.AbstractUI;
 import org.peergreen.vaadin.diagram.client.ui.CompartmentUI;
 import org.peergreen.vaadin.diagram.client.ui.ConnectorUI;
@@ -33,6 +39,7 @@ import org.peergreen.vaadin.diagram.client.ui.UI;
 
 import com.google.gwt.canvas.dom.client.Context2d;
 import com.google.gwt.event.dom.client.MouseEvent;
+import com.google.gwt.user.client.Command;
 
 /**
  * The client state model is only used on the client side and contains helper methods used by UIs.
@@ -47,6 +54,18 @@ public class ClientStateModel {
     private UI currentUI;
     private UI selectedUI;
     private UI tempDrawUI;
+
+    /**
+     * Entity being dragged: it is lifted with its connectors on the overlay layer (null if none).
+     */
+    private EntityUI draggedEntity;
+
+    /**
+     * The diagram is panned by dragging the background, from the last mouse position (in pixels).
+     */
+    private boolean panning = false;
+    private double panX;
+    private double panY;
     private UI moveComponentUI;
     private UI zoomComponentUI;
 
@@ -55,12 +74,86 @@ public class ClientStateModel {
     private  double scale = 1.0;
     private  double invertScale = 1.0;
 
+    /**
+     * Pixels of the backing store of the canvas being painted for a CSS pixel.
+     */
+    private double pixelRatio = 1.0;
+
+    /**
+     * The view changes on each frame (zoom animation).
+     */
+    private boolean animating = false;
+
+    /**
+     * Quality of the drawing (adapted to the paint time).
+     */
+    private RenderQuality quality = RenderQuality.HIGH;
+
+    /**
+     * Scales under which the level of detail is lowered.
+     */
+    private double lowDetailScale = 0.4;
+    private double mediumDetailScale = 0.7;
+
     private final List<UI> rootUIs = new ArrayList<UI>();
 
-    private final LinkedList<ConnectorUI> connectors = new LinkedList<ConnectorUI>();
+    /**
+     * Root UIs that are not diagram elements (navigation components), they are always hit-test candidates.
+     */
+    private final List<UI> fixedUIs = new ArrayList<UI>();
+
+    private final List<ConnectorUI> connectors = new ArrayList<ConnectorUI>();
+
+    private final List<ConnectorUI> connectorsView = Collections.unmodifiableList(connectors);
+
+    /**
+     * Entities and connectors removed but still in their list: they are dropped by {@link #compactElements()}.
+     */
+    private final Set<UI> removedUIs = new HashSet<UI>();
+
+    /**
+     * Indexes of the diagram elements by handle.
+     */
+    private final HandleIndex<EntityUI> entities = new HandleIndex<EntityUI>();
+    private final HandleIndex<CompartmentUI> compartments = new HandleIndex<CompartmentUI>();
+    private final HandleIndex<PortUI> ports = new HandleIndex<PortUI>();
+    private final HandleIndex<ConnectorUI> connectorsById = new HandleIndex<ConnectorUI>();
+
+    /**
+     * Connectors attached to each port (indexed by port handle).
+     */
+    private final HandleIndex<List<ConnectorUI>> portConnectors = new HandleIndex<List<ConnectorUI>>();
+
+    /**
+     * Keys of the (unordered) pairs of ports that are already connected.
+     */
+    private final Set<Long> connectedPorts = new HashSet<Long>();
+
+    /**
+     * Spatial indexes used for hit-testing.
+     */
+    private final SpatialIndex<EntityUI> entityIndex = new SpatialIndex<EntityUI>();
+    private final SpatialIndex<ConnectorUI> connectorIndex = new SpatialIndex<ConnectorUI>();
+
+    /**
+     * Result of the last hit-test candidates query (reused).
+     */
+    private final List<UI> candidates = new ArrayList<UI>();
+
+    /**
+     * Result of the last area queries (reused).
+     */
+    private final List<EntityUI> entitiesInArea = new ArrayList<EntityUI>();
+    private final List<ConnectorUI> connectorsInArea = new ArrayList<ConnectorUI>();
 
     private IPoint mouseCoordinates;
 
+    /**
+     * Reused points: the last pointer event and the copy of the mouse coordinates.
+     */
+    private final MutableScaledPoint pointer = new MutableScaledPoint();
+    private final MutableScaledPoint mouse = new MutableScaledPoint();
+
     /**
      * Offset used to translate drawing on the X coordinate.
      */
@@ -74,16 +167,140 @@ public class ClientStateModel {
 
     private final List<AbstractUI> globalEventCallbacks = new ArrayList<AbstractUI>();
 
+    /**
+     * Area of the diagram that needs to be painted again, for each layer.
+     */
+    private final DamageRegion[] damages = new DamageRegion[DiagramLayer.values().length];
+
+    /**
+     * Size of the canvas (in pixels).
+     */
+    private double viewportWidth = 0;
+    private double viewportHeight = 0;
+
+    private final Rectangle viewport = new Rectangle();
+
+
+    /**
+     * Context used instead of the canvas while rendering offscreen (null otherwise).
+     */
+    private Context2d renderTarget;
+
+    /**
+     * Layer being painted and its context (null outside of a paint).
+     */
+    private DiagramLayer currentLayer;
+    private Context2d layerContext;
+
+    /**
+     * Bitmaps of the entities.
+     */
+    private final EntityBitmapCache entityBitmapCache;
+
+    /**
+     * Tiles of the scene layer.
+     */
+    private final SceneTileCache sceneTileCache;
+
+    /**
+     * Asks for the diagram to be painted again, outside of the handling of an event (icon loaded).
+     */
+    private Command redrawCommand;
+
+    /**
+     * Hidden canvas used for the hit-testing when enabled.
+     */
+    private final PickBuffer pickBuffer;
 
     public ClientStateModel(Context2d canvas, final IDiagramServerRpc serverRpc) {
         this.canvas = canvas;
         rpc = serverRpc;
+        this.entityBitmapCache = new EntityBitmapCache(this);
+        this.sceneTileCache = new SceneTileCache(this);
+        this.pickBuffer = new PickBuffer(this);
+        for (int i = 0; i < damages.length; i++) {
+            damages[i] = new DamageRegion();
+        }
     }
 
+    /**
+     * @return the context on which UIs are drawn
+     */
     public Context2d getCanvas() {
+        if (renderTarget != null) {
+            return renderTarget;
+        }
+        if (layerContext != null) {
+            return layerContext;
+        }
         return canvas;
     }
 
+    /**
+     * Redirects the drawing of UIs to the canvas of a layer.
+     * @param layer the layer being painted, or null once the paint is done
+     * @param context the context of the layer canvas
+     */
+    public void setLayer(final DiagramLayer layer, final Context2d context) {
+        this.currentLayer = layer;
+        this.layerContext = context;
+    }
+
+    /**
+     * The hover highlight is only drawn on the overlay, the other layers do not change when the mouse moves.
+     * @param ui a UI
+     * @return true if the UI is under the mouse and has to be drawn highlighted
+     */
+    public boolean isMouseOver(final UI ui) {
+        return renderTarget == null && currentLayer == DiagramLayer.OVERLAY && ui == currentMouseOverUI;
+    }
+
+    /**
+     * Redirects the drawing of UIs to an offscreen context.
+     * @param renderTarget the offscreen context, or null to draw again on the canvas
+     */
+    public void setRenderTarget(final Context2d renderTarget) {
+        this.renderTarget = renderTarget;
+    }
+
+    /**
+     * @return the offscreen context on which UIs are drawn (null if none)
+     */
+    public Context2d getRenderTarget() {
+        return renderTarget;
+    }
+
+    public EntityBitmapCache getEntityBitmapCache() {
+        return entityBitmapCache;
+    }
+
+    public SceneTileCache getSceneTileCache() {
+        return sceneTileCache;
+    }
+
+    public PickBuffer getPickBuffer() {
+        return pickBuffer;
+    }
+
+    public void setRedrawCommand(final Command redrawCommand) {
+        this.redrawCommand = redrawCommand;
+    }
+
+    /**
+     * An icon of the entity has been loaded (or has failed to load): the entity is painted again, once.
+     * @param entity the entity showing the icon
+     */
+    public void iconLoaded(final EntityUI entity) {
+        if (entities.get(entity.getId()) != entity) {
+            // Removed in the meantime
+            return;
+        }
+        invalidate(entity);
+        if (redrawCommand != null) {
+            redrawCommand.execute();
+        }
+    }
+
 
 
     public UI getCurrentMouseOverUI() {
@@ -91,6 +308,10 @@ public class ClientStateModel {
     }
 
     public void setCurrentMouseOverUI(UI currentMouseOverUI) {
+        if (currentMouseOverUI != this.currentMouseOverUI) {
+            invalidateHighlight(DiagramLayer.OVERLAY, this.currentMouseOverUI);
+            invalidateHighlight(DiagramLayer.OVERLAY, currentMouseOverUI);
+        }
         this.currentMouseOverUI = currentMouseOverUI;
     }
 
@@ -107,8 +328,12 @@ public class ClientStateModel {
     }
 
     public void setSelectedUI(UI selectedUI) {
+        if (selectedUI != this.selectedUI) {
+            invalidateHighlight(null, this.selectedUI);
+            invalidateHighlight(null, selectedUI);
+        }
         this.selectedUI = selectedUI;
-        if (selectedUI != null) {
+        if (selectedUI != null && selectedUI.getId() != UI.NO_ID) {
             rpc.selected(selectedUI.getId());
         }
     }
@@ -119,24 +344,88 @@ public class ClientStateModel {
         return scale;
     }
 
+    /**
+     * Defines the scale, the invert scale is computed from it.
+     * @param scale number of pixels for a unit of the diagram
+     */
     public void setScale(double scale) {
         this.scale = scale;
-    }
-
-    public void setInvertScale(double invertScale) {
-        this.invertScale = invertScale;
+        this.invertScale = 1 / scale;
     }
 
     public double getInvertScale() {
         return invertScale;
     }
 
+    /**
+     * Defines the number of pixels of the canvas being painted for a CSS pixel (HiDPI displays).
+     * @param pixelRatio the ratio
+     */
+    public void setPixelRatio(final double pixelRatio) {
+        this.pixelRatio = pixelRatio;
+    }
+
+    /**
+     * Cached bitmaps rendered at a close scale are stretched instead of rendered again while the view is animated.
+     * @param animating true during an animation of the view
+     */
+    public void setAnimating(final boolean animating) {
+        this.animating = animating;
+    }
+
+    public boolean isAnimating() {
+        return animating;
+    }
+
+    public RenderQuality getQuality() {
+        return quality;
+    }
+
+    public void setQuality(final RenderQuality quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * @return number of pixels of the canvas being painted for a unit of the diagram
+     */
+    public double getPixelScale() {
+        return scale * pixelRatio;
+    }
+
+    /**
+     * Defines the scales under which the level of detail is lowered.
+     * @return true if the thresholds have changed
+     */
+    public boolean setDetailThresholds(final double lowDetailScale, final double mediumDetailScale) {
+        if (this.lowDetailScale == lowDetailScale && this.mediumDetailScale == mediumDetailScale) {
+            return false;
+        }
+        this.lowDetailScale = lowDetailScale;
+        this.mediumDetailScale = mediumDetailScale;
+        return true;
+    }
+
+    /**
+     * @return the level of detail to use for the current scale
+     */
+    public DetailLevel getDetailLevel() {
+        if (scale < lowDetailScale) {
+            return DetailLevel.LOW;
+        }
+        if (scale < mediumDetailScale) {
+            return DetailLevel.MEDIUM;
+        }
+        return DetailLevel.FULL;
+    }
+
     public UI getTempDrawUI() {
         return tempDrawUI;
     }
 
     public void setTempDrawUI(UI tempDrawUI) {
+        invalidate(DiagramLayer.OVERLAY, this.tempDrawUI);
         this.tempDrawUI = tempDrawUI;
+        invalidate(DiagramLayer.OVERLAY, tempDrawUI);
     }
 
     public List<AbstractUI> getGlobalEventCallbacks() {
@@ -145,10 +434,125 @@ public class ClientStateModel {
 
 
     public List<UI> getRootUIs() {
+        compactElements();
         return rootUIs;
     }
 
+    /**
+     * Adds a root UI that is not a diagram element (navigation components, ...).
+     * @param ui the UI to add
+     */
+    public void addRootUI(final UI ui) {
+        rootUIs.add(ui);
+        fixedUIs.add(ui);
+        invalidate(DiagramLayer.OVERLAY, ui);
+    }
+
+    /**
+     * Finds the UIs that may be hit by the given point, in hit-test order:
+     * connectors first (they are always matched before a shape), then the root UIs in their order.
+     * @param point the point (in diagram coordinates)
+     * @param withConnectors true if connectors are also candidates
+     * @return the candidates. The list is reused by the next query.
+     */
+    public List<UI> findCandidates(final IPoint point, final boolean withConnectors) {
+        candidates.clear();
+        if (withConnectors) {
+            connectorIndex.query(point.getX(), point.getY(), candidates);
+        }
+        for (int i = 0; i < fixedUIs.size(); i++) {
+            candidates.add(fixedUIs.get(i));
+        }
+        entityIndex.query(point.getX(), point.getY(), candidates);
+        return candidates;
+    }
+
+    /**
+     * @param area an area of the diagram
+     * @return the entities whose bounds intersect the area, in their drawing order. The list is reused by the next query.
+     */
+    public List<EntityUI> findEntities(final Rectangle area) {
+        entitiesInArea.clear();
+        entityIndex.query(area, entitiesInArea);
+        return entitiesInArea;
+    }
+
+    /**
+     * @param area an area of the diagram
+     * @return the connectors whose bounds intersect the area, in their drawing order. The list is reused by the next query.
+     */
+    public List<ConnectorUI> findConnectors(final Rectangle area) {
+        connectorsInArea.clear();
+        connectorIndex.query(area, connectorsInArea);
+        return connectorsInArea;
+    }
+
+    /**
+     * Finds the UI hit by the given point: the navigation components first, then the pick buffer when it is enabled.
+     * The geometric hit-testing is used otherwise, or when the pixel of the pick buffer is ambiguous.
+     * @param point the point (in diagram coordinates, with the original pixel coordinates)
+     * With a low level of detail, only the entities can be hit.
+     * @param point the point (in diagram coordinates, with the original pixel coordinates)
+     * @param withConnectors true if connectors may be hit
+     * @return the UI, or null if there is no UI at this point
+     */
+    public UI findUI(final IScaledPoint point, final boolean withConnectors) {
+        boolean connectorsHit = withConnectors && getDetailLevel() != DetailLevel.LOW;
+        if (pickBuffer.isEnabled()) {
+            for (int i = 0; i < fixedUIs.size(); i++) {
+                UI ui = fixedUIs.get(i);
+                if (ui instanceof ISelectable) {
+                    UI selectedUI = ((ISelectable) ui).getSelectedUI(point);
+                    if (selectedUI != null) {
+                        return selectedUI;
+                    }
+                }
+            }
+            int handle = pickBuffer.pick(point.getOriginalX(), point.getOriginalY());
+            if (handle == UI.NO_ID) {
+                return null;
+            }
+            if (handle != PickBuffer.UNKNOWN) {
+                UI ui = findElementUI(handle);
+                if (ui != null && (connectorsHit || !(ui instanceof ConnectorUI))) {
+                    return ui;
+                }
+            }
+        }
+
+        List<UI> uis = findCandidates(point, connectorsHit);
+        for (int i = 0; i < uis.size(); i++) {
+            UI ui = uis.get(i);
+            if (ui instanceof ISelectable) {
+                UI selectedUI = ((ISelectable) ui).getSelectedUI(point);
+                if (selectedUI != null) {
+                    return selectedUI;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param handle handle of a diagram element
+     * @return the UI of the element (entity, compartment, port or connector), null if unknown
+     */
+    public UI findElementUI(final int handle) {
+        UI ui = entities.get(handle);
+        if (ui == null) {
+            ui = compartments.get(handle);
+        }
+        if (ui == null) {
+            ui = ports.get(handle);
+        }
+        if (ui == null) {
+            ui = connectorsById.get(handle);
+        }
+        return ui;
+    }
+
     public List<UI> getAllUIs() {
+        compactElements();
         List<UI> uis = new ArrayList<UI>();
         // We store connectors before root UIs because it allows to always match a connector before a shape UI (Z axis)
         uis.addAll(connectors);
@@ -162,19 +566,35 @@ public class ClientStateModel {
         return mouseCoordinates;
     }
 
+    /**
+     * Defines the mouse coordinates. They are copied as the given point may be reused.
+     * @param mouseCoordinates the coordinates (may be null)
+     */
     public void setMouseCoordinates(IPoint mouseCoordinates) {
-        this.mouseCoordinates = mouseCoordinates;
+        // The temporary UI follows the mouse
+        invalidate(DiagramLayer.OVERLAY, tempDrawUI);
+        if (mouseCoordinates == null) {
+            this.mouseCoordinates = null;
+        } else if (mouseCoordinates instanceof IScaledPoint) {
+            IScaledPoint scaledPoint = (IScaledPoint) mouseCoordinates;
+            this.mouseCoordinates = mouse.set(scaledPoint.getOriginalX(), scaledPoint.getOriginalY(), scaledPoint.getX(), scaledPoint.getY());
+        } else {
+            this.mouseCoordinates = mouse.set(mouseCoordinates.getX(), mouseCoordinates.getY(), mouseCoordinates.getX(), mouseCoordinates.getY());
+        }
+        invalidate(DiagramLayer.OVERLAY, tempDrawUI);
     }
 
 
     /**
      * Find the scaling point hit by the mouse which is varying from the scale of the canvas.
      * @param event the mouse event
-     * @return the updated coordinates
+     * @return the updated coordinates. The same instance is returned for each event, it must not be kept.
      */
     public IScaledPoint buildScalePoint(MouseEvent<?> event) {
         // Scale
-        return scalePoint(event.getX(), event.getY());
+        double x = event.getX();
+        double y = event.getY();
+        return pointer.set(x, y, translateX + (x * invertScale), translateY + (y * invertScale));
     }
 
     public IScaledPoint scalePoint(final double x, final double y) {
@@ -198,83 +618,530 @@ public class ClientStateModel {
     }
 
 
-    public EntityUI findEntity(final String uuid) {
-        for (UI ui : rootUIs) {
-            if (uuid.equals(ui.getId())) {
-                if (ui instanceof EntityUI) {
-                    return (EntityUI) ui;
-                }
+    public EntityUI findEntity(final int id) {
+        return entities.get(id);
+    }
+
+    /**
+     * @return a read-only view of the connectors
+     */
+    public List<ConnectorUI> getConnectors() {
+        compactElements();
+        return connectorsView;
+    }
+
+    public CompartmentUI findCompartment(final int id) {
+        return compartments.get(id);
+    }
+
+    public PortUI findPort(final int id) {
+        return ports.get(id);
+    }
+
+    public ConnectorUI findConnector(final int id) {
+        return connectorsById.get(id);
+    }
+
+    /**
+     * @param port a port
+     * @return the connectors attached to the given port. This is a live view that must not be modified.
+     */
+    public List<ConnectorUI> findConnectors(final PortUI port) {
+        List<ConnectorUI> uis = portConnectors.get(port.getId());
+        if (uis == null) {
+            return Collections.emptyList();
+        }
+        return uis;
+    }
+
+    public void addEntity(final EntityUI entity) {
+        if (!removedUIs.remove(entity)) {
+            rootUIs.add(entity);
+        }
+        entities.put(entity.getId(), entity);
+        entityIndex.update(entity);
+        invalidate(entity);
+    }
+
+    public void removeEntity(final EntityUI entity) {
+        if (entity == draggedEntity) {
+            draggedEntity = null;
+        }
+        invalidate(entity);
+        removedUIs.add(entity);
+        entities.remove(entity.getId(), entity);
+        entityIndex.remove(entity);
+        entityBitmapCache.remove(entity);
+    }
+
+    public void addCompartment(final CompartmentUI compartment) {
+        // The entity grows: the following compartments and their connectors are moving
+        invalidateEntity(compartment.getEntity());
+        compartment.getEntity().addCompartment(compartment);
+        compartments.put(compartment.getId(), compartment);
+        updateEntityBounds(compartment.getEntity());
+    }
+
+    public void removeCompartment(final CompartmentUI compartment) {
+        invalidateEntity(compartment.getEntity());
+        compartment.getEntity().removeCompartment(compartment);
+        compartments.remove(compartment.getId(), compartment);
+        updateEntityBounds(compartment.getEntity());
+    }
+
+    public void addPort(final PortUI port) {
+        invalidateEntity(port.getCompartment().getEntity());
+        if (port instanceof ProvideUI) {
+            port.getCompartment().addProvide((ProvideUI) port);
+        } else {
+            port.getCompartment().addRequire((RequireUI) port);
+        }
+        ports.put(port.getId(), port);
+        updateEntityBounds(port.getCompartment().getEntity());
+    }
+
+    public void removePort(final PortUI port) {
+        invalidateEntity(port.getCompartment().getEntity());
+        if (port instanceof ProvideUI) {
+            port.getCompartment().removeProvide((ProvideUI) port);
+        } else {
+            port.getCompartment().removeRequire((RequireUI) port);
+        }
+        ports.remove(port.getId(), port);
+        updateEntityBounds(port.getCompartment().getEntity());
+    }
+
+    public void addConnector(ConnectorUI connector) {
+        // If we already have the same connector
+        if (!connectedPorts.add(getPortsKey(connector))) {
+            return;
+        }
+        if (!removedUIs.remove(connector)) {
+            connectors.add(connector);
+        }
+        connectorsById.put(connector.getId(), connector);
+        attachConnector(connector.getSourcePort(), connector);
+        attachConnector(connector.getTargetPort(), connector);
+        connectorIndex.update(connector);
+        internalConnectorChanged(connector);
+        invalidateConnector(connector);
+    }
+
+    public void removeConnector(ConnectorUI connector) {
+        if (connectorsById.get(connector.getId()) != connector) {
+            return;
+        }
+        removedUIs.add(connector);
+        invalidateConnector(connector);
+        connectorIndex.remove(connector);
+        internalConnectorChanged(connector);
+        connectorsById.remove(connector.getId(), connector);
+        connectedPorts.remove(getPortsKey(connector));
+        detachConnector(connector.getSourcePort(), connector);
+        detachConnector(connector.getTargetPort(), connector);
+    }
+
+    private void attachConnector(final PortUI port, final ConnectorUI connector) {
+        List<ConnectorUI> uis = portConnectors.get(port.getId());
+        if (uis == null) {
+            uis = new ArrayList<ConnectorUI>();
+            portConnectors.put(port.getId(), uis);
+        }
+        uis.add(connector);
+    }
+
+    private void detachConnector(final PortUI port, final ConnectorUI connector) {
+        List<ConnectorUI> uis = portConnectors.get(port.getId());
+        if (uis != null) {
+            uis.remove(connector);
+        }
+    }
+
+    /**
+     * @return a key identifying the pair of ports joined by the connector, whatever its direction.
+     */
+    private static Long getPortsKey(final ConnectorUI connector) {
+        int source = connector.getSourcePort().getId();
+        int target = connector.getTargetPort().getId();
+        long low = Math.min(source, target);
+        long high = Math.max(source, target);
+        return (high << 32) | low;
+    }
+
+    /**
+     * Drops the removed entities and connectors from their lists, in a single pass for all the removals
+     * of a change set (removing them one by one would be quadratic).
+     */
+    public void compactElements() {
+        if (removedUIs.isEmpty()) {
+            return;
+        }
+        compact(rootUIs);
+        compact(connectors);
+        removedUIs.clear();
+    }
+
+    private <T extends UI> void compact(final List<T> uis) {
+        int size = 0;
+        for (int i = 0; i < uis.size(); i++) {
+            T ui = uis.get(i);
+            if (!removedUIs.contains(ui)) {
+                uis.set(size++, ui);
             }
         }
+        uis.subList(size, uis.size()).clear();
+    }
 
-        return null;
+    /**
+     * Removes all the elements (entities and connectors), other root UIs are kept.
+     */
+    public void clearElements() {
+        Iterator<UI> iterator = rootUIs.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() instanceof EntityUI) {
+                iterator.remove();
+            }
+        }
+        connectors.clear();
+        removedUIs.clear();
+        entities.clear();
+        compartments.clear();
+        ports.clear();
+        connectorsById.clear();
+        portConnectors.clear();
+        connectedPorts.clear();
+        entityIndex.clear();
+        connectorIndex.clear();
+        entityBitmapCache.clear();
+        sceneTileCache.clear();
+        draggedEntity = null;
+        invalidateAll();
     }
 
     /**
-     * @return an immutable copy of the list
+     * @param layer a layer
+     * @return the area of the layer that needs to be painted again
      */
-    public List<ConnectorUI> getConnectors() {
-        //Collections.unmodifiableList(connectors);
-        return new ArrayList<ConnectorUI>(connectors);
+    public DamageRegion getDamage(final DiagramLayer layer) {
+        return damages[layer.ordinal()];
     }
 
-    public CompartmentUI findCompartment(final String uuid) {
-        for (UI rootUI : rootUIs) {
-            if (rootUI instanceof EntityUI) {
-                EntityUI entity = (EntityUI) rootUI;
-                for (CompartmentUI compartment : entity.getCompartments()) {
-                    if (uuid.equals(compartment.getId())) {
-                        return compartment;
-                    }
-                }
+    /**
+     * Asks for the area covered by the given UI to be painted again on all the layers.
+     * @param ui the UI that has changed (may be null)
+     */
+    public void invalidate(final UI ui) {
+        invalidate(null, ui);
+    }
+
+    /**
+     * Asks for the area covered by the given UI to be painted again on a layer.
+     * A change on the scene layer also invalidates the scene tiles (connectors are not part of them).
+     * @param layer the layer to paint again, or null for all the layers
+     * @param ui the UI that has changed (may be null)
+     */
+    public void invalidate(final DiagramLayer layer, final UI ui) {
+        if (ui == null) {
+            return;
+        }
+        if ((layer == null || layer == DiagramLayer.SCENE) && !(ui instanceof ConnectorUI)) {
+            sceneTileCache.invalidate(ui.getBounds());
+        }
+        // The hover highlight (overlay) does not change the pick buffer
+        if (layer != DiagramLayer.OVERLAY) {
+            pickBuffer.invalidate(ui.getBounds());
+        }
+        if (layer == null ? !isFullyDamaged() : !getDamage(layer).isFull()) {
+            damageArea(layer, ui.getBounds());
+        }
+    }
+
+    /**
+     * Asks for an area of the diagram to be painted again.
+     * @param layer the layer to paint again, or null for all the layers
+     * @param area the area (in diagram coordinates)
+     */
+    public void invalidateArea(final DiagramLayer layer, final Rectangle area) {
+        if (layer != DiagramLayer.OVERLAY) {
+            pickBuffer.invalidate(area);
+        }
+        damageArea(layer, area);
+    }
+
+    private void damageArea(final DiagramLayer layer, final Rectangle area) {
+        if (layer != null) {
+            DamageRegion damage = damages[layer.ordinal()];
+            if (!damage.isFull()) {
+                damage.add(area);
+            }
+            return;
+        }
+        for (int i = 0; i < damages.length; i++) {
+            if (!damages[i].isFull()) {
+                damages[i].add(area);
             }
         }
-        return null;
     }
 
-    public PortUI findPort(final String uuid) {
-        for (UI rootUI : rootUIs) {
-            if (rootUI instanceof EntityUI) {
-                EntityUI entity = (EntityUI) rootUI;
-                for (CompartmentUI compartment : entity.getCompartments()) {
-                    for (RequireUI require : compartment.getRequires()) {
-                        if (uuid.equals(require.getId())) {
-                            return require;
-                        }
-                    }
-                    for (ProvideUI provide : compartment.getProvides()) {
-                        if (uuid.equals(provide.getId())) {
-                            return provide;
-                        }
-                    }
-                }
+    /**
+     * Asks for the whole diagram to be painted again (zoom, translation, ...).
+     */
+    public void invalidateAll() {
+        for (int i = 0; i < damages.length; i++) {
+            damages[i].addAll();
+        }
+        pickBuffer.invalidateAll();
+    }
+
+    private boolean isFullyDamaged() {
+        for (int i = 0; i < damages.length; i++) {
+            if (!damages[i].isFull()) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Invalidates an entity and all the connectors attached to its ports (they follow the entity).
+     * @param entity the entity that is changing or moving
+     */
+    public void invalidateEntity(final EntityUI entity) {
+        // A dragged entity is only drawn on the overlay
+        DiagramLayer layer = null;
+        if (entity == draggedEntity) {
+            layer = DiagramLayer.OVERLAY;
+        }
+        invalidate(layer, entity);
+        if (layer == null ? isFullyDamaged() : getDamage(layer).isFull()) {
+            return;
+        }
+        List<CompartmentUI> entityCompartments = entity.getCompartments();
+        for (int i = 0; i < entityCompartments.size(); i++) {
+            invalidatePortConnectors(layer, entityCompartments.get(i));
+        }
+    }
+
+    /**
+     * Updates the spatial indexes and invalidates an entity whose bounds have changed (moved, resized).
+     * The connectors attached to its ports are following it.
+     * The indexes of a dragged entity are only updated once it is dropped.
+     * @param entity the entity that has changed
+     */
+    public void updateEntityBounds(final EntityUI entity) {
+        if (entity == draggedEntity) {
+            invalidateEntity(entity);
+            return;
+        }
+        if (entities.get(entity.getId()) == entity) {
+            entityIndex.update(entity);
+        }
+        List<CompartmentUI> entityCompartments = entity.getCompartments();
+        for (int i = 0; i < entityCompartments.size(); i++) {
+            updateConnectorBounds(entityCompartments.get(i).getRequires());
+            updateConnectorBounds(entityCompartments.get(i).getProvides());
+        }
+        invalidateEntity(entity);
+    }
+
+    /**
+     * Lifts an entity and its connectors on the overlay layer while it is dragged: the scene and the connectors
+     * layers are painted once without them, then only the overlay is painted again when the entity moves.
+     * @param entity the entity that starts to be dragged
+     */
+    public void startDrag(final EntityUI entity) {
+        if (draggedEntity != null) {
+            endDrag();
+        }
+        invalidateEntity(entity);
+        draggedEntity = entity;
+        invalidateEntity(entity);
+    }
+
+    /**
+     * Drops the dragged entity (if any): it goes back to the scene and the spatial indexes are updated.
+     */
+    public void endDrag() {
+        EntityUI entity = draggedEntity;
+        if (entity != null) {
+            invalidateEntity(entity);
+            draggedEntity = null;
+            updateEntityBounds(entity);
+        }
+    }
+
+    public EntityUI getDraggedEntity() {
+        return draggedEntity;
+    }
+
+    /**
+     * Starts to pan the diagram by dragging its background.
+     * @param x X coordinate of the mouse (in pixels)
+     * @param y Y coordinate of the mouse (in pixels)
+     */
+    public void startPan(final double x, final double y) {
+        this.panning = true;
+        this.panX = x;
+        this.panY = y;
+    }
+
+    public boolean isPanning() {
+        return panning;
+    }
+
+    public double getPanX() {
+        return panX;
+    }
+
+    public double getPanY() {
+        return panY;
+    }
+
+    /**
+     * Moves the reference position of the pan.
+     * @param x X coordinate of the mouse (in pixels)
+     * @param y Y coordinate of the mouse (in pixels)
+     */
+    public void setPan(final double x, final double y) {
+        this.panX = x;
+        this.panY = y;
+    }
+
+    public void endPan() {
+        this.panning = false;
+    }
+
+    /**
+     * @param ui a UI
+     * @return true if the UI belongs to the dragged entity or is attached to it (connector)
+     */
+    public boolean isLifted(final UI ui) {
+        if (draggedEntity == null) {
+            return false;
+        }
+        if (ui instanceof ConnectorUI) {
+            ConnectorUI connector = (ConnectorUI) ui;
+            return getEntity(connector.getSourcePort()) == draggedEntity
+                    || getEntity(connector.getTargetPort()) == draggedEntity;
+        }
+        return getEntity(ui) == draggedEntity;
+    }
+
+    /**
+     * @param ui an entity, a compartment or a port
+     * @return the entity the UI belongs to (null for other UIs)
+     */
+    public static EntityUI getEntity(final UI ui) {
+        if (ui instanceof EntityUI) {
+            return (EntityUI) ui;
+        }
+        if (ui instanceof CompartmentUI) {
+            return ((CompartmentUI) ui).getEntity();
+        }
+        if (ui instanceof PortUI) {
+            return ((PortUI) ui).getCompartment().getEntity();
+        }
         return null;
     }
 
-    public List<ConnectorUI> findConnectors(final PortUI port) {
-        List<ConnectorUI> uis = new ArrayList<ConnectorUI>();
-        for (ConnectorUI connector : connectors) {
-            if (port.equals(connector.getSourcePort()) || port.equals(connector.getTargetPort())) {
-                uis.add(connector);
+    /**
+     * Updates the spatial index of all the connectors, their hit tolerance depends on the scale.
+     */
+    public void updateConnectorsBounds() {
+        compactElements();
+        for (int i = 0; i < connectors.size(); i++) {
+            connectors.get(i).invalidateBounds();
+            connectorIndex.update(connectors.get(i));
+        }
+    }
+
+    private void updateConnectorBounds(final List<? extends PortUI> ports) {
+        for (int i = 0; i < ports.size(); i++) {
+            List<ConnectorUI> attached = findConnectors(ports.get(i));
+            for (int j = 0; j < attached.size(); j++) {
+                connectorIndex.update(attached.get(j));
             }
         }
-        return uis;
     }
 
-    public void addConnector(ConnectorUI connector) {
-        for (ConnectorUI ui : connectors) {
-            // If we already have the same connector
-            if (ui.isSame(connector)) {
-                return;
+    /**
+     * Ports show their internal connectors (hidden) with a mark, the entity content has changed.
+     */
+    private void internalConnectorChanged(final ConnectorUI connector) {
+        if (connector.isInternal()) {
+            connector.getSourcePort().getCompartment().getEntity().contentChanged();
+        }
+    }
+
+    /**
+     * Invalidates a connector and its ports (they show hidden internal connectors).
+     */
+    private void invalidateConnector(final ConnectorUI connector) {
+        invalidate(connector);
+        invalidate(connector.getSourcePort());
+        invalidate(connector.getTargetPort());
+    }
+
+    /**
+     * Invalidates a UI whose hover or selection state changes.
+     * Internal connectors are only drawn when one of their compartments is selected.
+     */
+    private void invalidateHighlight(final DiagramLayer layer, final UI ui) {
+        invalidate(layer, ui);
+        if (ui instanceof CompartmentUI) {
+            invalidatePortConnectors(layer, (CompartmentUI) ui);
+        }
+    }
+
+    private void invalidatePortConnectors(final DiagramLayer layer, final CompartmentUI compartment) {
+        invalidateConnectors(layer, compartment.getRequires());
+        invalidateConnectors(layer, compartment.getProvides());
+    }
+
+    private void invalidateConnectors(final DiagramLayer layer, final List<? extends PortUI> ports) {
+        for (int i = 0; i < ports.size(); i++) {
+            List<ConnectorUI> attached = findConnectors(ports.get(i));
+            for (int j = 0; j < attached.size(); j++) {
+                invalidate(layer, attached.get(j));
             }
         }
-        connectors.add(connector);
     }
 
-    public void removeConnector(ConnectorUI connector) {
-        connectors.remove(connector);
+    /**
+     * Defines the size of the canvas.
+     * @param width width in pixels
+     * @param height height in pixels
+     */
+    public void setViewportSize(final double width, final double height) {
+        this.viewportWidth = width;
+        this.viewportHeight = height;
+    }
+
+    public double getViewportWidth() {
+        return viewportWidth;
+    }
+
+    public double getViewportHeight() {
+        return viewportHeight;
+    }
+
+    /**
+     * @return the visible area of the diagram (in diagram coordinates). The returned rectangle is reused.
+     */
+    public Rectangle getViewport() {
+        return viewport.set(translateX, translateY, viewportWidth * invertScale, viewportHeight * invertScale);
+    }
+
+    /**
+     * @param bounds bounds of a UI
+     * @return true if the UI is (at least partially) visible
+     */
+    public boolean isVisible(final Rectangle bounds) {
+        // Offscreen rendering draws the whole UI
+        if (renderTarget != null) {
+            return true;
+        }
+        return bounds.intersects(getViewport());
     }
 
     public IDiagramServerRpc getServerRpc() {
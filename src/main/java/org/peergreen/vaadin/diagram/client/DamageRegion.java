@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
+
+/**
+ * Area of the diagram (in diagram coordinates) that needs to be painted again.
+ * It is kept as a few rectangles: overlapping ones are merged and, when there are too many of them,
+ * they are all merged in a single bounding rectangle.
+ */
+public class DamageRegion {
+
+    /**
+     * Maximum number of disjoint rectangles tracked before merging them.
+     */
+    private static final int MAX_RECTANGLES = 8;
+
+    /**
+     * Margin added around each damaged rectangle to cover anti-aliasing.
+     */
+    private static final double MARGIN = 2;
+
+    private final List<Rectangle> rectangles = new ArrayList<Rectangle>();
+
+    /**
+     * Rectangles released by {@link #clear()}, reused by {@link #add(Rectangle)}.
+     */
+    private final List<Rectangle> pool = new ArrayList<Rectangle>();
+
+    /**
+     * The whole diagram is damaged.
+     */
+    private boolean full = false;
+
+    /**
+     * Adds the given area to the damaged region.
+     * @param area the damaged area (it is copied)
+     */
+    public void add(final Rectangle area) {
+        if (full || area.isEmpty()) {
+            return;
+        }
+        Rectangle damaged = obtain().set(area).grow(MARGIN);
+
+        // Merge with the rectangles overlapping the new one (this may cascade)
+        int i = 0;
+        while (i < rectangles.size()) {
+            Rectangle rectangle = rectangles.get(i);
+            if (rectangle.intersects(damaged)) {
+                damaged.add(rectangle);
+                pool.add(rectangles.remove(i));
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+        rectangles.add(damaged);
+
+        if (rectangles.size() > MAX_RECTANGLES) {
+            Rectangle union = rectangles.remove(0);
+            while (!rectangles.isEmpty()) {
+                Rectangle rectangle = rectangles.remove(rectangles.size() - 1);
+                union.add(rectangle);
+                pool.add(rectangle);
+            }
+            rectangles.add(union);
+        }
+    }
+
+    /**
+     * Damages the whole diagram.
+     */
+    public void addAll() {
+        full = true;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public boolean isEmpty() {
+        return !full && rectangles.isEmpty();
+    }
+
+    /**
+     * @param area an area of the diagram
+     * @return true if the given area needs to be painted again
+     */
+    public boolean intersects(final Rectangle area) {
+        if (full) {
+            return true;
+        }
+        for (int i = 0; i < rectangles.size(); i++) {
+            if (rectangles.get(i).intersects(area)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the bounding rectangle of the damaged region (not meaningful if the whole diagram is damaged).
+     * @param bounds the rectangle to fill
+     * @return the given rectangle
+     */
+    public Rectangle getBounds(final Rectangle bounds) {
+        bounds.setEmpty();
+        for (int i = 0; i < rectangles.size(); i++) {
+            bounds.add(rectangles.get(i));
+        }
+        return bounds;
+    }
+
+    /**
+     * @return the damaged rectangles (not meaningful if the whole diagram is damaged)
+     */
+    public List<Rectangle> getRectangles() {
+        return rectangles;
+    }
+
+    public void clear() {
+        full = false;
+        pool.addAll(rectangles);
+        rectangles.clear();
+    }
+
+    private Rectangle obtain() {
+        if (pool.isEmpty()) {
+            return new Rectangle();
+        }
+        return pool.remove(pool.size() - 1);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+/**
+ * Level of detail used to draw the diagram, depending on the zoom.
+ */
+public enum DetailLevel {
+
+    /**
+     * Far out: entities are plain boxes and connectors thin lines (no text, icon, port nor shadow).
+     */
+    LOW,
+
+    /**
+     * Ports are drawn without their names.
+     */
+    MEDIUM,
+
+    /**
+     * Everything is drawn.
+     */
+    FULL
+}
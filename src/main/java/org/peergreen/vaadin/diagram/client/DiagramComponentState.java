@@ -16,6 +16,11 @@
 
 package org.peergreen.vaadin.diagram.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.peergreen.vaadin.diagram.client.change.ModelChange;
+
 /**
  * Component state that can be shared between server and client.
  * @author Florent Benoit
@@ -27,5 +32,47 @@ public class DiagramComponentState extends com.vaadin.shared.AbstractComponentSt
      */
     private static final long serialVersionUID = -1241514755323305458L;
 
+    /**
+     * Full model, expressed as the list of creations needed to rebuild it.
+     * Sent when the component is attached (or refreshed) and when the client asks for a resync,
+     * emptied on the following response (the client only reads it when {@link #snapshotVersion} changes).
+     */
+    public List<ModelChange> snapshot = new ArrayList<ModelChange>();
+
+    /**
+     * Incremented each time a new snapshot is built, so that the client knows it has to rebuild its model.
+     */
+    public int snapshotVersion = 0;
+
+    /**
+     * Sequence number of the last change set included in the snapshot.
+     * Change sets with a lower or equal sequence number are already part of the snapshot.
+     */
+    public int snapshotSequence = 0;
+
+    /**
+     * Under this scale, the diagram is drawn with a low level of detail (see {@link DetailLevel#LOW}).
+     */
+    public double lowDetailScale = 0.4;
+
+    /**
+     * Under this scale, the diagram is drawn with a medium level of detail (see {@link DetailLevel#MEDIUM}).
+     */
+    public double mediumDetailScale = 0.7;
+
+    /**
+     * Maximum number of pixels of the entity bitmaps cached by the client (0 disables the cache).
+     */
+    public int entityCacheBudget = EntityBitmapCache.DEFAULT_PIXEL_BUDGET;
+
+    /**
+     * Maximum number of pixels of the backing store of a canvas (HiDPI displays).
+     */
+    public int maxCanvasPixels = DiagramWidget.DEFAULT_MAX_CANVAS_PIXELS;
+
+    /**
+     * The UI under the mouse is found with a pick buffer instead of the geometric hit-testing.
+     */
+    public boolean pickBufferEnabled = false;
 
 }
\ No newline at end of file
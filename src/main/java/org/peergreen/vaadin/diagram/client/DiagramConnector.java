@@ -17,8 +17,13 @@ package org.peergreen.vaadin.diagram.client;
 
 import static com.google.gwt.dom.client.Style.Cursor.AUTO;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.peergreen.vaadin.diagram.Diagram;
+import org.peergreen.vaadin.diagram.client.change.ModelChange;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientClickHandler;
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientKeyUpHandler;
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientMouseDownHandler;
@@ -26,7 +31,6 @@ import org.peergreen.vaadin.diagram.client.handler.DiagramClientMouseMoveHandler
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientMouseOutHandler;
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientMouseUpHandler;
 import org.peergreen.vaadin.diagram.client.handler.DiagramClientMouseWheelHandler;
-import org.peergreen.vaadin.diagram.client.select.ISelectable;
 import org.peergreen.vaadin.diagram.client.ui.CompartmentUI;
 import org.peergreen.vaadin.diagram.client.ui.ConnectorUI;
 import org.peergreen.vaadin.diagram.client.ui.EntityUI;
@@ -37,13 +41,17 @@ import org.peergreen.vaadin.diagram.client.ui.RequireUI;
 import org.peergreen.vaadin.diagram.client.ui.UI;
 import org.peergreen.vaadin.diagram.client.ui.ZoomComponentUI;
 
-import com.google.gwt.dom.client.CanvasElement;
-import com.google.gwt.dom.client.Document;
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationHandle;
+import com.google.gwt.canvas.dom.client.Context2d;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.dom.client.Style.Cursor;
 import com.google.gwt.event.dom.client.MouseOutEvent;
 import com.google.gwt.event.dom.client.MouseOutHandler;
 import com.google.gwt.event.dom.client.MouseOverEvent;
 import com.google.gwt.event.dom.client.MouseOverHandler;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.ApplicationConnection;
 import com.vaadin.client.Paintable;
@@ -84,156 +92,215 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
     private int created = 0;
 
     /**
-     * Build a new connector
+     * Version of the last snapshot applied on the client model.
      */
-    public DiagramConnector() {
+    private int snapshotVersion = -1;
 
-        this.clientStateModel = new ClientStateModel(getWidget().getContext2d(), serverRpc);
+    /**
+     * Sequence number of the last change set applied on the client model.
+     */
+    private int sequence = 0;
 
-        registerRpc(IDiagramClientRpc.class, new IDiagramClientRpc() {
+    /**
+     * A resync has been asked to the server and its snapshot is not yet received.
+     */
+    private boolean resyncPending = false;
 
-            /**
-             * Serial version UID.
-             */
-            private static final long serialVersionUID = 1622915989830982425L;
+    /**
+     * The canvas needs to be painted again.
+     */
+    private boolean dirty = false;
 
-            @Override
-            public void init() {
-            }
+    /**
+     * Cursor currently displayed over the component.
+     */
+    private Cursor cursor = AUTO;
 
-            @Override
-            public void createEntity(final String uuid, final String name) {
-                created++;
-                EntityUI entity = new EntityUI(clientStateModel, uuid, 80 + (created * 40), created * 40);
-                entity.setName(name);
-                clientStateModel.getRootUIs().add(entity);
-                redraw();
-            }
+    /**
+     * Animation frame requested for the next paint (if any).
+     */
+    private AnimationHandle paintRequest;
 
-            @Override
-            public void updateEntity(String uuid, String name) {
-                // Search the entity UI
-                EntityUI entityUI = clientStateModel.findEntity(uuid);
-
-                // Update the name
-                if (entityUI != null) {
-                    entityUI.setName(name);
-                    redraw();
-                }
-            }
+    /**
+     * Layers, from the bottom to the top.
+     */
+    private static final DiagramLayer[] LAYERS = DiagramLayer.values();
 
-            @Override
-            public void deleteEntity(final String uuid) {
-                EntityUI entity = clientStateModel.findEntity(uuid);
-                if (entity != null) {
-                    cleanDeletedUiReferences(entity);
-                    for (CompartmentUI compartment : entity.getCompartments()) {
-                        deleteCompartment(compartment.getId());
-                    }
-                    clientStateModel.getRootUIs().remove(entity);
-                }
-                redraw();
-            }
+    /**
+     * Area being painted and the same area extended to include the width of the connectors (reused).
+     */
+    private final Rectangle paintArea = new Rectangle();
+    private final Rectangle connectorArea = new Rectangle();
 
-            @Override
-            public void createCompartment(final String entityUuid, final String uuid, final String name, final String iconType) {
-                EntityUI entity = clientStateModel.findEntity(entityUuid);
-                if (entity != null) {
-                    CompartmentUI compartment = new CompartmentUI(clientStateModel, uuid, entity);
-                    compartment.setName(name);
-                    String resourceUrl = getResourceUrl(iconType);
-                    serverRpc.log(iconType + " -> " + resourceUrl);
-                    if (resourceUrl != null) {
-                        compartment.setIconUrl(resourceUrl);
-                    }
-                    entity.addCompartment(compartment);
-                }
-                redraw();
-            }
+    /**
+     * Painted part of the hovered UI (reused).
+     */
+    private final Rectangle hoverArea = new Rectangle();
 
-            @Override
-            public void deleteCompartment(final String uuid) {
-                CompartmentUI compartment = clientStateModel.findCompartment(uuid);
-                if (compartment != null) {
-                    cleanDeletedUiReferences(compartment);
-                    for (ProvideUI provide : compartment.getProvides()) {
-                        deleteProvide(provide.getId());
-                    }
-                    for (RequireUI require : compartment.getRequires()) {
-                        deleteRequire(require.getId());
-                    }
-                    compartment.getEntity().removeCompartment(compartment);
-                }
-                redraw();
-            }
+    /**
+     * Area uncovered by a pan (reused).
+     */
+    private final Rectangle exposedArea = new Rectangle();
 
-            @Override
-            public void createRequire(final String compartmentUuid, final String uuid, final String name) {
-                CompartmentUI compartment = clientStateModel.findCompartment(compartmentUuid);
-                if (compartment != null) {
-                    RequireUI require = new RequireUI(clientStateModel, uuid, compartment);
-                    require.setName(name);
-                    compartment.addRequire(require);
-                }
-                redraw();
-            }
+    /**
+     * Shift (in pixels) of the diagram not yet applied on the pixels of the scene and connectors layers.
+     */
+    private double pendingShiftX = 0;
+    private double pendingShiftY = 0;
 
-            @Override
-            public void createProvide(final String compartmentUuid, final String uuid, final String name) {
-                CompartmentUI compartment = clientStateModel.findCompartment(compartmentUuid);
-                if (compartment != null) {
-                    ProvideUI provide = new ProvideUI(clientStateModel, uuid, compartment);
-                    provide.setName(name);
-                    compartment.addProvide(provide);
-                }
-                redraw();
-            }
+    /**
+     * Part of the pans smaller than a pixel of the backing store, applied with the next pan.
+     */
+    private double panRemainderX = 0;
+    private double panRemainderY = 0;
 
-            @Override
-            public void createConnector(final String uuid, final String sourceUuid, final String targetUuid) {
-                PortUI source = clientStateModel.findPort(sourceUuid);
-                PortUI target = clientStateModel.findPort(targetUuid);
-                if ((source != null) && (target != null)) {
-                    // Only creates the ConnectorUI when source and target ports are known
-                    clientStateModel.addConnector(new ConnectorUI(clientStateModel, uuid, source, target));
-                }
-                redraw();
-            }
+    /**
+     * Size of the component (in CSS pixels).
+     */
+    private int canvasWidth = 0;
+    private int canvasHeight = 0;
 
+    /**
+     * Maximum number of pixels of the backing store of a canvas.
+     */
+    private int maxCanvasPixels = DiagramWidget.DEFAULT_MAX_CANVAS_PIXELS;
+
+    /**
+     * Margin around the painted area in which connectors are still drawn (line width and shadow).
+     */
+    private static final double CONNECTOR_MARGIN = 6;
+
+    /**
+     * Zoom levels are powers of the zoom step (the scale of the bitmap caches).
+     */
+    private static final double ZOOM_STEP = 1.25;
+    private static final int MIN_ZOOM_LEVEL = -15;
+    private static final int MAX_ZOOM_LEVEL = 10;
+
+    /**
+     * Duration of the zoom animation (in milliseconds).
+     */
+    private static final double ZOOM_DURATION = 150;
+
+    /**
+     * Wheel delta of a notch of the mouse wheel.
+     */
+    private static final double WHEEL_NOTCH = 3;
+
+    /**
+     * Current zoom level (the one being reached when the zoom is animated).
+     */
+    private int zoomLevel = 0;
+
+    /**
+     * Wheel deltas not yet turned into zoom steps (small deltas of touchpads).
+     */
+    private double wheelDelta = 0;
+
+    /**
+     * Zoom animation: scales, start time and anchor (in pixels and in diagram coordinates).
+     */
+    private boolean zooming = false;
+    private double zoomFromScale;
+    private double zoomToScale;
+    private double zoomStart;
+    private double zoomAnchorX;
+    private double zoomAnchorY;
+    private double zoomAnchorWorldX;
+    private double zoomAnchorWorldY;
+
+    /**
+     * Interval between two reports of the paint statistics to the server (in milliseconds).
+     */
+    private static final double STATISTICS_INTERVAL = 10000;
+
+    /**
+     * Adapts the quality to the paint time.
+     */
+    private final QualityGovernor qualityGovernor = new QualityGovernor();
+
+    /**
+     * The last paint has drawn the scene or the connectors layer, and has drawn the whole scene.
+     * Only these paints are measured by the quality governor: overlay paints (hover, drag) are always cheap.
+     */
+    private boolean scenePainted = false;
+    private boolean fullScenePainted = false;
+
+    /**
+     * Time of the last report of the paint statistics.
+     */
+    private double lastStatisticsReport = Duration.currentTimeMillis();
+
+    /**
+     * Paints the canvas on the next animation frame.
+     */
+    private final AnimationCallback paintCallback = new AnimationCallback() {
+        @Override
+        public void execute(double timestamp) {
+            paintRequest = null;
+            paintFrame();
+        }
+    };
+
+    /**
+     * Performs the work of an animation frame: next zoom animation step, paint and statistics.
+     * Another frame is requested while the zoom animation is not finished.
+     */
+    private void paintFrame() {
+        if (zooming) {
+            animateZoom();
+        }
+        if (dirty) {
+            double start = Duration.currentTimeMillis();
+            paint();
+            paintDone(Duration.currentTimeMillis() - start);
+        }
+        if (zooming) {
+            redraw();
+        }
+    }
+
+    /**
+     * Build a new connector
+     */
+    public DiagramConnector() {
+
+        this.clientStateModel = new ClientStateModel(getWidget().getContext2d(), serverRpc);
+        clientStateModel.setRedrawCommand(new Command() {
             @Override
-            public void deleteProvide(final String uuid) {
-                PortUI port = clientStateModel.findPort(uuid);
-                if (port != null) {
-                    cleanDeletedUiReferences(port);
-                    for (ConnectorUI connector : clientStateModel.findConnectors(port)) {
-                        clientStateModel.removeConnector(connector);
-                    }
-                    port.getCompartment().removeProvide((ProvideUI) port);
-                }
+            public void execute() {
                 redraw();
             }
+        });
+
+        registerRpc(IDiagramClientRpc.class, new IDiagramClientRpc() {
+
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 1622915989830982425L;
 
             @Override
-            public void deleteRequire(final String uuid) {
-                PortUI port = clientStateModel.findPort(uuid);
-                if (port != null) {
-                    cleanDeletedUiReferences(port);
-                    for (ConnectorUI connector : clientStateModel.findConnectors(port)) {
-                        clientStateModel.removeConnector(connector);
-                    }
-                    port.getCompartment().removeRequire((RequireUI) port);
-                }
-                redraw();
+            public void init() {
             }
 
             @Override
-            public void deleteConnector(final String uuid) {
-                for (ConnectorUI connector : clientStateModel.getConnectors()) {
-                    if (uuid.equals(connector.getId())) {
-                        cleanDeletedUiReferences(connector);
-                        clientStateModel.removeConnector(connector);
-                    }
+            public void applyChanges(final int sequence, final List<ModelChange> changes) {
+                if (sequence <= DiagramConnector.this.sequence) {
+                    // Already part of the snapshot
+                    return;
+                }
+                if (sequence != DiagramConnector.this.sequence + 1) {
+                    // We missed a change set, do not drift: ask for the whole model
+                    requestResync();
+                    return;
                 }
+                DiagramConnector.this.sequence = sequence;
+                for (ModelChange change : changes) {
+                    applyChange(change);
+                }
+                clientStateModel.compactElements();
+                // Only one repaint for the whole change set
                 redraw();
             }
 
@@ -241,26 +308,10 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
             public void handleDrop(final int x, final int y, final String data) {
 
                 IScaledPoint point = clientStateModel.scalePoint(x, y);
-                UI selected = null;
-                for (UI ui : clientStateModel.getAllUIs()) {
-
-                    // Can we select this UI ?
-                    if (!(ui instanceof ISelectable)) {
-                        continue;
-                    }
-
-                    ISelectable selectableUI = (ISelectable) ui;
+                // Always send back a dropTarget event
+                UI selected = clientStateModel.findUI(point, true);
 
-                    // Always send back a dropTarget event
-                    selected = selectableUI.getSelectedUI(point);
-                    if (selected != null) {
-                        // Exit loop if we hit something
-                        break;
-                    }
-
-                }
-
-                String id = null;
+                int id = UI.NO_ID;
                 if (selected != null) {
                     id = selected.getId();
                 }
@@ -297,54 +348,275 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
                 moveDown();
             }
 
-            @Override
-            public void reset() {
-                clientStateModel.getRootUIs().clear();
-                for (ConnectorUI connector : clientStateModel.getConnectors()) {
-                    clientStateModel.removeConnector(connector);
-                }
-                clientStateModel.getRootUIs().add(clientStateModel.getMoveComponentUI());
-                clientStateModel.getRootUIs().add(clientStateModel.getZoomComponentUI());
+        });
+    }
+
+    /**
+     * Removes all the elements from the client model, only the navigation components are kept.
+     */
+    protected void clearModel() {
+        clientStateModel.setSelectedUI(null);
+        clientStateModel.setCurrentMouseOverUI(null);
+        clientStateModel.setCurrentUI(null);
+        clientStateModel.clearElements();
+    }
 
+    /**
+     * Asks the server for a fresh snapshot (only once until it is received).
+     */
+    protected void requestResync() {
+        if (!resyncPending) {
+            resyncPending = true;
+            serverRpc.resync();
+        }
+    }
+
+    /**
+     * Rebuilds the whole client model from the snapshot contained in the shared state.
+     */
+    protected void applySnapshot() {
+        DiagramComponentState state = getState();
+        clearModel();
+        created = 0;
+        for (ModelChange change : state.snapshot) {
+            applyChange(change);
+        }
+        clientStateModel.compactElements();
+        snapshotVersion = state.snapshotVersion;
+        sequence = state.snapshotSequence;
+        resyncPending = false;
+        redraw();
+    }
+
+    /**
+     * Applies a single model change. No redraw is performed.
+     * @param change the change to apply
+     */
+    protected void applyChange(final ModelChange change) {
+        switch (change.getType()) {
+            case CREATE_ENTITY:
+                createEntity(change.getId(), change.getName());
+                break;
+            case UPDATE_ENTITY:
+                updateEntity(change.getId(), change.getName());
+                break;
+            case DELETE_ENTITY:
+                deleteEntity(change.getId());
+                break;
+            case CREATE_COMPARTMENT:
+                createCompartment(change.getParentId(), change.getId(), change.getName(), change.getIconType());
+                break;
+            case DELETE_COMPARTMENT:
+                deleteCompartment(change.getId());
+                break;
+            case CREATE_REQUIRE:
+                createRequire(change.getParentId(), change.getId(), change.getName());
+                break;
+            case DELETE_REQUIRE:
+                deletePort(change.getId());
+                break;
+            case CREATE_PROVIDE:
+                createProvide(change.getParentId(), change.getId(), change.getName());
+                break;
+            case DELETE_PROVIDE:
+                deletePort(change.getId());
+                break;
+            case CREATE_CONNECTOR:
+                createConnector(change.getId(), change.getSourceId(), change.getTargetId());
+                break;
+            case DELETE_CONNECTOR:
+                deleteConnector(change.getId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void createEntity(final int id, final String name) {
+        if (clientStateModel.findEntity(id) != null) {
+            // Already known (snapshot and change set may overlap)
+            updateEntity(id, name);
+            return;
+        }
+        created++;
+        EntityUI entity = new EntityUI(clientStateModel, id, 80 + (created * 40), created * 40);
+        entity.setName(name);
+        clientStateModel.addEntity(entity);
+    }
+
+    private void updateEntity(final int id, final String name) {
+        // Search the entity UI
+        EntityUI entityUI = clientStateModel.findEntity(id);
+
+        // Update the name
+        if (entityUI != null) {
+            entityUI.setName(name);
+            clientStateModel.invalidate(entityUI);
+        }
+    }
+
+    private void deleteEntity(final int id) {
+        EntityUI entity = clientStateModel.findEntity(id);
+        if (entity != null) {
+            cleanDeletedUiReferences(entity);
+            for (CompartmentUI compartment : new ArrayList<CompartmentUI>(entity.getCompartments())) {
+                deleteCompartment(compartment.getId());
             }
+            clientStateModel.removeEntity(entity);
+        }
+    }
 
-        });
+    private void createCompartment(final int entityId, final int id, final String name, final String iconType) {
+        EntityUI entity = clientStateModel.findEntity(entityId);
+        if (entity != null && clientStateModel.findCompartment(id) == null) {
+            CompartmentUI compartment = new CompartmentUI(clientStateModel, id, entity);
+            compartment.setName(name);
+            String resourceUrl = getResourceUrl(iconType);
+            if (resourceUrl != null) {
+                compartment.setIconUrl(resourceUrl);
+            }
+            clientStateModel.addCompartment(compartment);
+        }
     }
 
-    public void doZoomOut() {
-        clientStateModel.setInvertScale(clientStateModel.getInvertScale() * 0.8);
-        clientStateModel.setScale(clientStateModel.getScale() * 1.25);
+    private void deleteCompartment(final int id) {
+        CompartmentUI compartment = clientStateModel.findCompartment(id);
+        if (compartment != null) {
+            cleanDeletedUiReferences(compartment);
+            for (ProvideUI provide : new ArrayList<ProvideUI>(compartment.getProvides())) {
+                deletePort(provide.getId());
+            }
+            for (RequireUI require : new ArrayList<RequireUI>(compartment.getRequires())) {
+                deletePort(require.getId());
+            }
+            clientStateModel.removeCompartment(compartment);
+        }
+    }
 
-        getWidget().getContext2d().scale(1.25, 1.25);
-        // needs to change the shift
-        double translateX = clientStateModel.getTranslateX();
-        if (translateX != 0) {
-            clientStateModel.setTranslateX(translateX * 0.8);
+    private void createRequire(final int compartmentId, final int id, final String name) {
+        CompartmentUI compartment = clientStateModel.findCompartment(compartmentId);
+        if (compartment != null && clientStateModel.findPort(id) == null) {
+            RequireUI require = new RequireUI(clientStateModel, id, compartment);
+            require.setName(name);
+            clientStateModel.addPort(require);
         }
-        double translateY = clientStateModel.getTranslateY();
-        if (translateY != 0) {
-            clientStateModel.setTranslateY(translateY * 0.8);
+    }
+
+    private void createProvide(final int compartmentId, final int id, final String name) {
+        CompartmentUI compartment = clientStateModel.findCompartment(compartmentId);
+        if (compartment != null && clientStateModel.findPort(id) == null) {
+            ProvideUI provide = new ProvideUI(clientStateModel, id, compartment);
+            provide.setName(name);
+            clientStateModel.addPort(provide);
         }
+    }
 
-        redraw();
+    private void createConnector(final int id, final int sourceId, final int targetId) {
+        PortUI source = clientStateModel.findPort(sourceId);
+        PortUI target = clientStateModel.findPort(targetId);
+        if ((source != null) && (target != null) && clientStateModel.findConnector(id) == null) {
+            // Only creates the ConnectorUI when source and target ports are known
+            clientStateModel.addConnector(new ConnectorUI(clientStateModel, id, source, target));
+        }
+    }
 
+    private void deletePort(final int id) {
+        PortUI port = clientStateModel.findPort(id);
+        if (port != null) {
+            cleanDeletedUiReferences(port);
+            for (ConnectorUI connector : new ArrayList<ConnectorUI>(clientStateModel.findConnectors(port))) {
+                clientStateModel.removeConnector(connector);
+            }
+            clientStateModel.removePort(port);
+        }
+    }
+
+    private void deleteConnector(final int id) {
+        ConnectorUI connector = clientStateModel.findConnector(id);
+        if (connector != null) {
+            cleanDeletedUiReferences(connector);
+            clientStateModel.removeConnector(connector);
+        }
+    }
+
+    /**
+     * Enlarges the diagram by one zoom step, around the center of the component.
+     */
+    public void doZoomOut() {
+        zoom(1, canvasWidth / 2.0, canvasHeight / 2.0);
     }
 
+    /**
+     * Shrinks the diagram by one zoom step, around the center of the component.
+     */
     public void doZoomIn() {
-        clientStateModel.setScale(clientStateModel.getScale() * 0.8);
-        clientStateModel.setInvertScale(clientStateModel.getInvertScale() * 1.25);
-        getWidget().getContext2d().scale(0.8, 0.8);
-        double translateX = clientStateModel.getTranslateX();
-        if (translateX != 0) {
-            clientStateModel.setTranslateX(translateX * 1.25);
+        zoom(-1, canvasWidth / 2.0, canvasHeight / 2.0);
+    }
+
+    /**
+     * Accumulates the deltas of the mouse wheel and zooms by one step for each notch, around the cursor.
+     * @param delta vertical delta of the wheel (positive when going down)
+     * @param x X coordinate of the cursor (in pixels)
+     * @param y Y coordinate of the cursor (in pixels)
+     */
+    public void zoomWheel(final double delta, final double x, final double y) {
+        wheelDelta += delta;
+        int steps = (int) (wheelDelta / WHEEL_NOTCH);
+        if (steps != 0) {
+            wheelDelta -= steps * WHEEL_NOTCH;
+            // Going up enlarges the diagram
+            zoom(-steps, x, y);
         }
-        double translateY = clientStateModel.getTranslateY();
-        if (translateY != 0) {
-            clientStateModel.setTranslateY(translateY * 1.25);
+    }
+
+    /**
+     * Animates the zoom to a new level: the point of the diagram under the anchor stays at the same place.
+     * Zooming again during the animation starts from the current scale.
+     * @param steps number of zoom steps (positive to enlarge)
+     * @param x X coordinate of the anchor (in pixels)
+     * @param y Y coordinate of the anchor (in pixels)
+     */
+    public void zoom(final int steps, final double x, final double y) {
+        int level = Math.max(MIN_ZOOM_LEVEL, Math.min(MAX_ZOOM_LEVEL, zoomLevel + steps));
+        if (level == zoomLevel) {
+            return;
         }
+        zoomLevel = level;
+        zoomFromScale = clientStateModel.getScale();
+        zoomToScale = Math.pow(ZOOM_STEP, level);
+        zoomAnchorX = x;
+        zoomAnchorY = y;
+        zoomAnchorWorldX = clientStateModel.getTranslateX() + x * clientStateModel.getInvertScale();
+        zoomAnchorWorldY = clientStateModel.getTranslateY() + y * clientStateModel.getInvertScale();
+        zoomStart = Duration.currentTimeMillis();
+        zooming = true;
         redraw();
     }
 
+    /**
+     * Applies the scale of the zoom animation for the current frame.
+     */
+    private void animateZoom() {
+        double progress = (Duration.currentTimeMillis() - zoomStart) / ZOOM_DURATION;
+        double scale;
+        if (progress >= 1) {
+            scale = zoomToScale;
+            zooming = false;
+        } else {
+            // Geometric interpolation: constant zoom speed
+            scale = zoomFromScale * Math.pow(zoomToScale / zoomFromScale, progress);
+        }
+        clientStateModel.setScale(scale);
+        clientStateModel.setTranslateX(zoomAnchorWorldX - zoomAnchorX / scale);
+        clientStateModel.setTranslateY(zoomAnchorWorldY - zoomAnchorY / scale);
+        if (!zooming) {
+            // The hit tolerance of the connectors depends on the scale
+            clientStateModel.updateConnectorsBounds();
+        }
+        clientStateModel.invalidateAll();
+        dirty = true;
+    }
+
     public void moveLeft() {
         translate(clientStateModel.getTranslateOffset(),0);
     }
@@ -362,9 +634,55 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
     }
 
     protected void translate(double x, double y) {
+        double scale = clientStateModel.getScale();
+        pan(x * scale, y * scale);
+    }
+
+    /**
+     * Pans the diagram: the pixels already rendered are moved on the next paint and only the uncovered strips
+     * are painted again.
+     * @param dx horizontal shift (in CSS pixels)
+     * @param dy vertical shift (in CSS pixels)
+     */
+    public void pan(double dx, double dy) {
+        // Whole pixels of the backing store: the rendered pixels can be moved as they are
+        double ratio = getWidget().getPixelRatio(DiagramLayer.SCENE);
+        double shiftX = Math.round((dx + panRemainderX) * ratio);
+        double shiftY = Math.round((dy + panRemainderY) * ratio);
+        panRemainderX += dx - shiftX / ratio;
+        panRemainderY += dy - shiftY / ratio;
+        if (shiftX == 0 && shiftY == 0) {
+            return;
+        }
+        double x = shiftX / ratio * clientStateModel.getInvertScale();
+        double y = shiftY / ratio * clientStateModel.getInvertScale();
         clientStateModel.setTranslateX(clientStateModel.getTranslateX() - x);
         clientStateModel.setTranslateY(clientStateModel.getTranslateY() - y);
-        getWidget().getContext2d().translate(x, y);
+        if (zooming) {
+            // The anchor of the zoom follows the pan
+            zoomAnchorWorldX -= x;
+            zoomAnchorWorldY -= y;
+        }
+        pendingShiftX += shiftX;
+        pendingShiftY += shiftY;
+
+        Rectangle viewport = clientStateModel.getViewport();
+        if (x > 0) {
+            exposedArea.set(viewport.getX(), viewport.getY(), x, viewport.getHeight());
+            clientStateModel.invalidateArea(null, exposedArea);
+        } else if (x < 0) {
+            exposedArea.set(viewport.getMaxX() + x, viewport.getY(), -x, viewport.getHeight());
+            clientStateModel.invalidateArea(null, exposedArea);
+        }
+        if (y > 0) {
+            exposedArea.set(viewport.getX(), viewport.getY(), viewport.getWidth(), y);
+            clientStateModel.invalidateArea(null, exposedArea);
+        } else if (y < 0) {
+            exposedArea.set(viewport.getX(), viewport.getMaxY() + y, viewport.getWidth(), -y);
+            clientStateModel.invalidateArea(null, exposedArea);
+        }
+        // The navigation components stay at the same place on the screen
+        clientStateModel.getDamage(DiagramLayer.OVERLAY).addAll();
         redraw();
     }
 
@@ -414,58 +732,285 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
         // Key events
         getWidget().addKeyUpHandler(new DiagramClientKeyUpHandler(this, clientStateModel));
 
-        MoveComponentUI moveComponentUI = new MoveComponentUI(this, clientStateModel, "moveComponent");
-        clientStateModel.getRootUIs().add(moveComponentUI);
+        MoveComponentUI moveComponentUI = new MoveComponentUI(this, clientStateModel);
+        clientStateModel.addRootUI(moveComponentUI);
         clientStateModel.setMoveComponentUI(moveComponentUI);
 
-        ZoomComponentUI zoomComponentUI = new ZoomComponentUI(this, clientStateModel, "zoomComponent");
-        clientStateModel.getRootUIs().add(zoomComponentUI);
+        ZoomComponentUI zoomComponentUI = new ZoomComponentUI(this, clientStateModel);
+        clientStateModel.addRootUI(zoomComponentUI);
         clientStateModel.setZoomComponentUI(zoomComponentUI);
 
     }
 
     /**
-     * Draw the component.
+     * Asks for the component to be drawn: the canvas is marked as dirty and only one paint is performed on the next
+     * animation frame, whatever the number of calls.
      */
     public void redraw() {
+        dirty = true;
+        if (paintRequest == null) {
+            paintRequest = AnimationScheduler.get().requestAnimationFrame(paintCallback, getWidget().getElement());
+        }
+    }
 
-        // Perform the shift
-        getWidget().getContext2d().clearRect(clientStateModel.getTranslateX() - 100, clientStateModel.getTranslateY() - 100, 5000, 5000);
+    /**
+     * Performs the pending animation frame immediately, without waiting for the browser.
+     */
+    public void flushNow() {
+        if (paintRequest != null) {
+            paintRequest.cancel();
+            paintRequest = null;
+        }
+        paintFrame();
+    }
+
+    /**
+     * Draw the damaged area of each layer: it is cleared then only the UIs of the layer intersecting it are drawn
+     * again. UIs outside of the visible area are skipped and layers without damage are left untouched.
+     */
+    protected void paint() {
+        dirty = false;
+        scenePainted = false;
+        fullScenePainted = false;
+
+        updateBackingStores();
+        clientStateModel.setAnimating(zooming);
+
+        boolean shifted = pendingShiftX != 0 || pendingShiftY != 0;
+        for (DiagramLayer layer : LAYERS) {
+            DamageRegion damage = clientStateModel.getDamage(layer);
+            Context2d context = getWidget().getContext2d(layer);
+            double pixelRatio = getWidget().getPixelRatio(layer);
+            clientStateModel.setPixelRatio(pixelRatio);
+            applyView(context, pixelRatio);
+            if (shifted && layer != DiagramLayer.OVERLAY && !damage.isFull()) {
+                shiftPixels(layer, context);
+            }
+            if (damage.isEmpty()) {
+                continue;
+            }
 
-        // Redraw root UIs
-        for (UI ui : clientStateModel.getRootUIs()) {
-            ui.draw();
+            if (layer != DiagramLayer.OVERLAY) {
+                scenePainted = true;
+                fullScenePainted |= layer == DiagramLayer.SCENE && damage.isFull();
+            }
+            clientStateModel.setLayer(layer, context);
+            context.save();
+            clearDamage(context, damage);
+            switch (layer) {
+                case SCENE:
+                    paintScene(context, damage);
+                    break;
+                case CONNECTORS:
+                    paintConnectors(damage);
+                    break;
+                case OVERLAY:
+                    paintOverlay(context, damage);
+                    break;
+                default:
+                    break;
+            }
+            context.restore();
+            damage.clear();
         }
+        clientStateModel.setLayer(null, null);
+        pendingShiftX = 0;
+        pendingShiftY = 0;
+    }
 
-        // Notice that we're redrawin a UI that has already been draw (directly or indirectly) from the root UIs.
-        // That leads to weird impressions: text bolder than they should be, ...
-        // Not super hyper important, but deserves a note :)
+    /**
+     * Feeds the quality governor with the duration of a paint of the scene or of the connectors. When the quality
+     * changes, the whole diagram is painted again with it (cached bitmaps are discarded) and the server is notified.
+     * @param paintTime duration of the paint (in milliseconds)
+     */
+    private void paintDone(final double paintTime) {
+        if (!scenePainted) {
+            return;
+        }
+        boolean changed = qualityGovernor.record(paintTime, fullScenePainted);
+        if (changed) {
+            clientStateModel.setQuality(qualityGovernor.getQuality());
+            clientStateModel.getEntityBitmapCache().clear();
+            clientStateModel.getSceneTileCache().clear();
+            clientStateModel.invalidateAll();
+            redraw();
+        }
+        double now = Duration.currentTimeMillis();
+        if (changed || now - lastStatisticsReport >= STATISTICS_INTERVAL) {
+            serverRpc.renderStatistics(qualityGovernor.getQuality(), qualityGovernor.getFrames(),
+                    qualityGovernor.getAveragePaintTime(), qualityGovernor.getMaxPaintTime());
+            qualityGovernor.resetStatistics();
+            lastStatisticsReport = now;
+        }
+    }
 
-        // Redraw the selected UI
-        if (clientStateModel.getCurrentMouseOverUI() != null) {
-            clientStateModel.getCurrentMouseOverUI().draw();
+    /**
+     * Sizes the backing store of each layer for the pixel ratio of the display, within the maximum number of pixels.
+     * Layers painted on each frame (all of them during a zoom animation, the overlay while an entity is dragged)
+     * use at most one pixel per CSS pixel, they get back to full sharpness once the interaction is over.
+     */
+    private void updateBackingStores() {
+        if (canvasWidth <= 0 || canvasHeight <= 0) {
+            return;
+        }
+        double devicePixelRatio = 1;
+        if (clientStateModel.getQuality().isHiDpi()) {
+            devicePixelRatio = DiagramWidget.getDevicePixelRatio();
+        }
+        double ratio = Math.min(devicePixelRatio,
+                Math.sqrt((double) maxCanvasPixels / ((double) canvasWidth * canvasHeight)));
+        double interactiveRatio = Math.min(ratio, 1);
+        for (DiagramLayer layer : LAYERS) {
+            boolean interactive = zooming
+                    || (layer == DiagramLayer.OVERLAY && clientStateModel.getDraggedEntity() != null);
+            if (getWidget().setCanvasSize(layer, canvasWidth, canvasHeight, interactive ? interactiveRatio : ratio)) {
+                // The content of a resized canvas is lost
+                clientStateModel.getDamage(layer).addAll();
+            }
         }
+    }
+
+    /**
+     * Replaces the transformation of a layer by the view of the model (scale then translation).
+     */
+    private void applyView(final Context2d context, final double pixelRatio) {
+        double scale = clientStateModel.getScale() * pixelRatio;
+        context.setTransform(scale, 0, 0, scale, -clientStateModel.getTranslateX() * scale,
+                -clientStateModel.getTranslateY() * scale);
+    }
 
-        // Draw connectors
-        for (ConnectorUI connector : clientStateModel.getConnectors()) {
-            connector.draw();
+    /**
+     * Moves the pixels of a layer by the pending shift, the uncovered strips become transparent.
+     */
+    private void shiftPixels(final DiagramLayer layer, final Context2d context) {
+        context.save();
+        context.setTransform(1, 0, 0, 1, 0, 0);
+        context.setGlobalCompositeOperation(Context2d.Composite.COPY);
+        context.drawImage(getWidget().getCanvasElement(layer), pendingShiftX, pendingShiftY);
+        context.restore();
+    }
+
+    /**
+     * Computes the painted areas then clears the damaged area of a layer, the drawing is restricted to it.
+     */
+    private void clearDamage(final Context2d context, final DamageRegion damage) {
+        Rectangle viewport = clientStateModel.getViewport();
+        if (damage.isFull()) {
+            paintArea.set(viewport);
+        } else {
+            damage.getBounds(paintArea).intersect(viewport);
+        }
+        connectorArea.set(paintArea).grow(CONNECTOR_MARGIN);
+
+        if (damage.isFull()) {
+            context.clearRect(viewport.getX(), viewport.getY(), viewport.getWidth(), viewport.getHeight());
+        } else {
+            // Restrict the drawing to the damaged rectangles
+            List<Rectangle> rectangles = damage.getRectangles();
+            context.beginPath();
+            for (int i = 0; i < rectangles.size(); i++) {
+                Rectangle rectangle = rectangles.get(i);
+                context.rect(rectangle.getX(), rectangle.getY(), rectangle.getWidth(), rectangle.getHeight());
+            }
+            context.clip();
+            for (int i = 0; i < rectangles.size(); i++) {
+                Rectangle rectangle = rectangles.get(i);
+                context.clearRect(rectangle.getX(), rectangle.getY(), rectangle.getWidth(), rectangle.getHeight());
+            }
+        }
+    }
+
+    /**
+     * Draws the visible entities from the scene tiles.
+     */
+    private void paintScene(final Context2d context, final DamageRegion damage) {
+        clientStateModel.getSceneTileCache().draw(context, damage, paintArea);
+    }
+
+    /**
+     * Draws the dragged entity (from its bitmap when possible) and the connectors attached to it.
+     * They are not in the spatial indexes until the entity is dropped.
+     */
+    private void paintDraggedEntity(final Context2d context, final DamageRegion damage, final EntityUI entity) {
+        if (damage.intersects(entity.getBounds()) && clientStateModel.isVisible(entity.getBounds())
+                && !clientStateModel.getEntityBitmapCache().draw(entity, context)) {
+            entity.draw();
+        }
+        List<CompartmentUI> compartments = entity.getCompartments();
+        for (int i = 0; i < compartments.size(); i++) {
+            paintDraggedConnectors(damage, compartments.get(i).getRequires());
+            paintDraggedConnectors(damage, compartments.get(i).getProvides());
+        }
+    }
+
+    private void paintDraggedConnectors(final DamageRegion damage, final List<? extends PortUI> ports) {
+        for (int i = 0; i < ports.size(); i++) {
+            List<ConnectorUI> connectors = clientStateModel.findConnectors(ports.get(i));
+            for (int j = 0; j < connectors.size(); j++) {
+                ConnectorUI connector = connectors.get(j);
+                if (damage.intersects(connector.getBounds()) && connector.intersects(connectorArea)) {
+                    connector.draw();
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the visible connectors.
+     */
+    private void paintConnectors(final DamageRegion damage) {
+        List<ConnectorUI> connectors = clientStateModel.findConnectors(connectorArea);
+        for (int i = 0; i < connectors.size(); i++) {
+            ConnectorUI connector = connectors.get(i);
+            if (damage.intersects(connector.getBounds()) && connector.intersects(connectorArea)
+                    && !clientStateModel.isLifted(connector)) {
+                connector.draw();
+            }
+        }
+    }
+
+    /**
+     * Draws the dragged entity, the hovered UI (highlighted), the temporary UI and the navigation components.
+     */
+    private void paintOverlay(final Context2d context, final DamageRegion damage) {
+        EntityUI draggedEntity = clientStateModel.getDraggedEntity();
+        if (draggedEntity != null) {
+            paintDraggedEntity(context, damage, draggedEntity);
+        }
+
+        UI mouseOverUI = clientStateModel.getCurrentMouseOverUI();
+        if (mouseOverUI != null && !clientStateModel.isLifted(mouseOverUI) && damage.intersects(mouseOverUI.getBounds())
+                && clientStateModel.isVisible(mouseOverUI.getBounds())) {
+            mouseOverUI.draw();
+
+            // Connectors stay above the shapes: draw again the ones crossing the hovered shape
+            if (!(mouseOverUI instanceof ConnectorUI)) {
+                hoverArea.set(mouseOverUI.getBounds()).intersect(connectorArea);
+                List<ConnectorUI> connectors = clientStateModel.findConnectors(hoverArea);
+                for (int i = 0; i < connectors.size(); i++) {
+                    ConnectorUI connector = connectors.get(i);
+                    if (connector.intersects(hoverArea) && !clientStateModel.isLifted(connector)) {
+                        connector.draw();
+                    }
+                }
+            }
         }
 
         // Draw temp ui if any
-        if (clientStateModel.getTempDrawUI() != null) {
-            clientStateModel.getTempDrawUI().draw();
+        UI tempDrawUI = clientStateModel.getTempDrawUI();
+        if (tempDrawUI != null && damage.intersects(tempDrawUI.getBounds())) {
+            tempDrawUI.draw();
         }
 
         UI moveComponentUI = clientStateModel.getMoveComponentUI();
-        if (moveComponentUI != null) {
+        if (moveComponentUI != null && damage.intersects(moveComponentUI.getBounds())) {
             moveComponentUI.draw();
         }
 
         UI zoomComponentUI = clientStateModel.getZoomComponentUI();
-        if (zoomComponentUI != null) {
+        if (zoomComponentUI != null && damage.intersects(zoomComponentUI.getBounds())) {
             zoomComponentUI.draw();
         }
-
     }
 
 
@@ -473,7 +1018,7 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
      * Unset the cursor
      */
     public void unsetCursor() {
-        getWidget().getElement().getStyle().setCursor(AUTO);
+        setCursor(AUTO);
     }
 
     /**
@@ -481,7 +1026,11 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
      * @param cursor
      */
     public void setCursor(Cursor cursor) {
-        getWidget().getElement().getStyle().setCursor(cursor);
+        // Only touch the style (and the layout of the page) when the cursor changes
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            getWidget().getElement().getStyle().setCursor(cursor);
+        }
     }
 
 
@@ -490,8 +1039,7 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
      */
     @Override
     protected Widget createWidget() {
-        CanvasElement element = Document.get().createCanvasElement();
-        DiagramWidget diagramWidget = new DiagramWidget(this, element);
+        DiagramWidget diagramWidget = new DiagramWidget(this);
         diagramWidget.setStyleName("canvas-widget");
         return diagramWidget;
     }
@@ -518,6 +1066,23 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
     @Override
     public void onStateChanged(StateChangeEvent stateChangeEvent) {
         super.onStateChanged(stateChangeEvent);
+
+        DiagramComponentState state = getState();
+        if (clientStateModel.setDetailThresholds(state.lowDetailScale, state.mediumDetailScale)) {
+            clientStateModel.invalidateAll();
+            redraw();
+        }
+        clientStateModel.getEntityBitmapCache().setPixelBudget(state.entityCacheBudget);
+        clientStateModel.getPickBuffer().setEnabled(state.pickBufferEnabled);
+        if (state.maxCanvasPixels != maxCanvasPixels) {
+            maxCanvasPixels = state.maxCanvasPixels;
+            redraw();
+        }
+
+        // New snapshot (first display, refresh or requested resync)
+        if (getState().snapshotVersion != snapshotVersion) {
+            applySnapshot();
+        }
     }
 
     @Override
@@ -526,19 +1091,27 @@ public class DiagramConnector extends AbstractComponentConnector implements Simp
         // Update the height/width
         int newHeight = getWidget().getElement().getOffsetHeight();
         int newWidth = getWidget().getElement().getOffsetWidth();
-        if (getWidget().getCanvasElement().getHeight() != newHeight || getWidget().getCanvasElement().getWidth() != newWidth) {
-            getWidget().getCanvasElement().setHeight(newHeight);
-            getWidget().getCanvasElement().setWidth(newWidth);
-            getWidget().getContext2d().scale(clientStateModel.getScale(), clientStateModel.getScale());
-            getWidget().getContext2d().translate(-clientStateModel.getTranslateX(), -clientStateModel.getTranslateY());
-        }
+        clientStateModel.setViewportSize(newWidth, newHeight);
+        canvasWidth = newWidth;
+        canvasHeight = newHeight;
+        updateBackingStores();
     }
 
     @Override
     public void postLayout() {
+        clientStateModel.invalidateAll();
         redraw();
     }
 
+    @Override
+    public void onUnregister() {
+        super.onUnregister();
+        if (paintRequest != null) {
+            paintRequest.cancel();
+            paintRequest = null;
+        }
+    }
+
     @Override
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
         getWidget().setCurrentClient(client);
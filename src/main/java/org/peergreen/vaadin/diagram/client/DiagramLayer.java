@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+/**
+ * Layers of the diagram, each one being drawn on its own canvas (from the bottom to the top).
+ * A layer is only painted again when it is damaged.
+ */
+public enum DiagramLayer {
+
+    /**
+     * Entities (with their compartments and ports).
+     */
+    SCENE,
+
+    /**
+     * Connectors.
+     */
+    CONNECTORS,
+
+    /**
+     * Interaction feedback: hovered UI, temporary UI and navigation components.
+     */
+    OVERLAY
+}
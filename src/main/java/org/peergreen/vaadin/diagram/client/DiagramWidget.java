@@ -19,7 +19,11 @@ import java.util.Map;
 
 import com.google.gwt.canvas.dom.client.Context2d;
 import com.google.gwt.dom.client.CanvasElement;
-import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.DivElement;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Style;
+import com.google.gwt.dom.client.Style.Position;
+import com.google.gwt.dom.client.Style.Unit;
 import com.google.gwt.user.client.ui.FocusWidget;
 import com.vaadin.client.ApplicationConnection;
 import com.vaadin.client.ComponentConnector;
@@ -29,6 +33,7 @@ import com.vaadin.client.ui.dd.VHasDropHandler;
 
 /**
  * Widget that is implementing Canvas element and Drop Handler.
+ * It stacks one canvas per {@link DiagramLayer} in a div element.
  * @author Florent Benoit
  */
 public class DiagramWidget extends FocusWidget implements VHasDropHandler {
@@ -36,8 +41,37 @@ public class DiagramWidget extends FocusWidget implements VHasDropHandler {
     private final VDropHandler dropHandler;
     private ApplicationConnection currentClient;
 
-    public DiagramWidget(final ComponentConnector connector, Element element) {
+    /**
+     * Default maximum number of pixels of the backing store of a canvas (a 4K display).
+     */
+    public static final int DEFAULT_MAX_CANVAS_PIXELS = 3840 * 2160;
+
+    private final CanvasElement[] canvases = new CanvasElement[DiagramLayer.values().length];
+
+    /**
+     * Number of pixels of the backing store for a CSS pixel, for each canvas.
+     */
+    private final double[] pixelRatios = new double[DiagramLayer.values().length];
+
+    public DiagramWidget(final ComponentConnector connector) {
+        DivElement element = Document.get().createDivElement();
+        element.getStyle().setPosition(Position.RELATIVE);
         setElement(element);
+        // Focusable (key events)
+        setTabIndex(0);
+
+        for (DiagramLayer layer : DiagramLayer.values()) {
+            CanvasElement canvas = Document.get().createCanvasElement();
+            Style style = canvas.getStyle();
+            style.setPosition(Position.ABSOLUTE);
+            style.setLeft(0, Unit.PX);
+            style.setTop(0, Unit.PX);
+            style.setZIndex(layer.ordinal());
+            element.appendChild(canvas);
+            canvases[layer.ordinal()] = canvas;
+            pixelRatios[layer.ordinal()] = 1;
+        }
+
         this.dropHandler = new VDropHandler() {
 
             @Override
@@ -82,25 +116,86 @@ public class DiagramWidget extends FocusWidget implements VHasDropHandler {
 
 
     /**
-     * Returns the attached Canvas Element.
+     * Returns the Canvas Element of the scene layer.
      *
      * @return the Canvas Element
      */
     public CanvasElement getCanvasElement() {
-      return this.getElement().cast();
+      return getCanvasElement(DiagramLayer.SCENE);
     }
 
     /**
-     * Returns a 2D rendering context.
+     * Returns the Canvas Element of the given layer.
      *
-     * This is a convenience method, see {@link #getContext(String)}.
+     * @param layer the layer
+     * @return the Canvas Element
+     */
+    public CanvasElement getCanvasElement(final DiagramLayer layer) {
+      return canvases[layer.ordinal()];
+    }
+
+    /**
+     * Returns a 2D rendering context of the scene layer.
+     *
+     * This is a convenience method, see {@link #getContext2d(DiagramLayer)}.
      *
      * @return a 2D canvas rendering context
      */
     public Context2d getContext2d() {
-      return getCanvasElement().getContext2d();
+      return getContext2d(DiagramLayer.SCENE);
+    }
+
+    /**
+     * Returns the 2D rendering context of the given layer.
+     *
+     * @param layer the layer
+     * @return a 2D canvas rendering context
+     */
+    public Context2d getContext2d(final DiagramLayer layer) {
+      return getCanvasElement(layer).getContext2d();
+    }
+
+    /**
+     * Sizes the canvas of a layer: it is displayed with the given size and its backing store has ratio times more
+     * pixels in each direction.
+     *
+     * @param layer the layer
+     * @param width width (in CSS pixels)
+     * @param height height (in CSS pixels)
+     * @param ratio number of pixels of the backing store for a CSS pixel
+     * @return true if the canvas has been resized (its content is lost)
+     */
+    public boolean setCanvasSize(final DiagramLayer layer, final int width, final int height, final double ratio) {
+        CanvasElement canvas = getCanvasElement(layer);
+        int pixelWidth = (int) Math.round(width * ratio);
+        int pixelHeight = (int) Math.round(height * ratio);
+        if (canvas.getWidth() == pixelWidth && canvas.getHeight() == pixelHeight
+                && pixelRatios[layer.ordinal()] == ratio) {
+            return false;
+        }
+        canvas.setWidth(pixelWidth);
+        canvas.setHeight(pixelHeight);
+        canvas.getStyle().setWidth(width, Unit.PX);
+        canvas.getStyle().setHeight(height, Unit.PX);
+        pixelRatios[layer.ordinal()] = ratio;
+        return true;
+    }
+
+    /**
+     * @param layer the layer
+     * @return number of pixels of the backing store of the layer for a CSS pixel
+     */
+    public double getPixelRatio(final DiagramLayer layer) {
+        return pixelRatios[layer.ordinal()];
     }
 
+    /**
+     * @return number of physical pixels for a CSS pixel of the display
+     */
+    public static native double getDevicePixelRatio() /*-{
+        return $wnd.devicePixelRatio || 1;
+    }-*/;
+
     public void setCurrentClient(ApplicationConnection currentClient) {
         this.currentClient = currentClient;
     }
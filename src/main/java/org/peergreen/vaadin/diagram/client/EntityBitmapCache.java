@@ -0,0 +1,214 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
+import org.peergreen.vaadin.diagram.client.ui.EntityUI;
+
+import com.google.gwt.canvas.dom.client.Context2d;
+import com.google.gwt.dom.client.CanvasElement;
+import com.google.gwt.dom.client.Document;
+
+/**
+ * Cache of the bitmaps of entities: an entity is drawn once in an offscreen canvas, then this bitmap is copied
+ * on the diagram until its content, the zoom or the level of detail change.
+ * Entities that are selected (or whose children are) are always drawn directly.
+ * The bitmaps are kept within a budget of pixels, the least recently used ones being evicted first.
+ */
+public class EntityBitmapCache {
+
+    /**
+     * Default budget: 16M pixels (64MB).
+     */
+    public static final int DEFAULT_PIXEL_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * Bitmaps are stretched by at most half a zoom step while the view is animated.
+     */
+    private static final double ZOOM_STEP = 1.25;
+
+    /**
+     * Larger bitmaps are not cached.
+     */
+    private static final int MAX_DIMENSION = 4096;
+
+    private static final class Bitmap {
+        private CanvasElement canvas;
+        private int contentVersion;
+        private double scale;
+        private DetailLevel detailLevel;
+        private int pixels;
+
+        /**
+         * Location of the bitmap relative to the entity and size (in diagram coordinates).
+         */
+        private double offsetX;
+        private double offsetY;
+        private double width;
+        private double height;
+    }
+
+    private final ClientStateModel model;
+
+    /**
+     * Bitmaps in access order (least recently used first).
+     */
+    private final LinkedHashMap<EntityUI, Bitmap> bitmaps = new LinkedHashMap<EntityUI, Bitmap>(16, 0.75f, true);
+
+    private int pixelBudget = DEFAULT_PIXEL_BUDGET;
+
+    private int pixels = 0;
+
+    public EntityBitmapCache(final ClientStateModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Defines the maximum number of pixels of the cached bitmaps (0 disables the cache).
+     * @param pixelBudget number of pixels
+     */
+    public void setPixelBudget(final int pixelBudget) {
+        this.pixelBudget = pixelBudget;
+        evict();
+    }
+
+    public int getPixelBudget() {
+        return pixelBudget;
+    }
+
+    /**
+     * Draws the entity from its cached bitmap, rendering it first if needed.
+     * @param entity the entity to draw
+     * @param context the context on which the bitmap is copied
+     * @return false if the entity can't be drawn from the cache and needs to be drawn directly
+     */
+    public boolean draw(final EntityUI entity, final Context2d context) {
+        DetailLevel detailLevel = model.getDetailLevel();
+        if (pixelBudget <= 0 || detailLevel == DetailLevel.LOW || isHighlighted(entity) || !entity.isIconsLoaded()) {
+            return false;
+        }
+
+        double scale = model.getPixelScale();
+        Bitmap bitmap = bitmaps.get(entity);
+        if (bitmap == null || bitmap.contentVersion != entity.getContentVersion()
+                || !isUsable(bitmap.scale, scale) || bitmap.detailLevel != detailLevel) {
+            bitmap = render(entity, bitmap, scale, detailLevel);
+            if (bitmap == null) {
+                return false;
+            }
+        }
+
+        context.drawImage(bitmap.canvas, entity.getX() + bitmap.offsetX, entity.getY() + bitmap.offsetY, bitmap.width, bitmap.height);
+        return true;
+    }
+
+    public void remove(final EntityUI entity) {
+        Bitmap bitmap = bitmaps.remove(entity);
+        if (bitmap != null) {
+            pixels -= bitmap.pixels;
+        }
+    }
+
+    public void clear() {
+        bitmaps.clear();
+        pixels = 0;
+    }
+
+    /**
+     * @return true if a bitmap rendered at the given scale can be copied at the current one
+     */
+    private boolean isUsable(final double bitmapScale, final double scale) {
+        if (bitmapScale == scale) {
+            return true;
+        }
+        // While the view is animated, a bitmap rendered at a close scale is stretched
+        return model.isAnimating() && Math.abs(Math.log(bitmapScale / scale)) < Math.log(ZOOM_STEP) / 2;
+    }
+
+    private Bitmap render(final EntityUI entity, final Bitmap previous, final double scale, final DetailLevel detailLevel) {
+        Rectangle bounds = entity.getBounds();
+        double x = bounds.getX();
+        double y = bounds.getY();
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+
+        int pixelWidth = (int) Math.ceil(width * scale);
+        int pixelHeight = (int) Math.ceil(height * scale);
+        if (pixelWidth <= 0 || pixelHeight <= 0 || pixelWidth > MAX_DIMENSION || pixelHeight > MAX_DIMENSION
+                || pixelWidth * pixelHeight > pixelBudget / 4) {
+            // Not worth it (or too big): draw it directly
+            remove(entity);
+            return null;
+        }
+
+        Bitmap bitmap = previous;
+        if (bitmap == null) {
+            bitmap = new Bitmap();
+            bitmap.canvas = Document.get().createCanvasElement();
+            bitmaps.put(entity, bitmap);
+        }
+        pixels -= bitmap.pixels;
+        // Resizing the canvas also clears it
+        bitmap.canvas.setWidth(pixelWidth);
+        bitmap.canvas.setHeight(pixelHeight);
+        bitmap.pixels = pixelWidth * pixelHeight;
+        pixels += bitmap.pixels;
+
+        Context2d context = bitmap.canvas.getContext2d();
+        context.setTransform(scale, 0, 0, scale, -x * scale, -y * scale);
+        Context2d renderTarget = model.getRenderTarget();
+        model.setRenderTarget(context);
+        try {
+            entity.draw();
+        } finally {
+            model.setRenderTarget(renderTarget);
+        }
+
+        bitmap.contentVersion = entity.getContentVersion();
+        bitmap.scale = scale;
+        bitmap.detailLevel = detailLevel;
+        bitmap.offsetX = x - entity.getX();
+        bitmap.offsetY = y - entity.getY();
+        bitmap.width = pixelWidth / scale;
+        bitmap.height = pixelHeight / scale;
+
+        evict();
+        return bitmap;
+    }
+
+    /**
+     * Removes the least recently used bitmaps until the budget is met.
+     */
+    private void evict() {
+        Iterator<Bitmap> iterator = bitmaps.values().iterator();
+        while (pixels > pixelBudget && iterator.hasNext()) {
+            pixels -= iterator.next().pixels;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * The hover highlight is drawn on the overlay layer, only the selection changes the scene.
+     * @return true if the entity, one of its compartments or ports is selected
+     */
+    private boolean isHighlighted(final EntityUI entity) {
+        return entity == ClientStateModel.getEntity(model.getSelectedUI());
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of UIs by element handle.
+ * Handles are small, dense integers assigned by the server, so the index is a plain array.
+ * @param <T> indexed type
+ */
+public class HandleIndex<T> {
+
+    private final List<T> items = new ArrayList<T>();
+
+    /**
+     * @param handle element handle
+     * @return the indexed item or {@literal null}
+     */
+    public T get(final int handle) {
+        if (handle < 0 || handle >= items.size()) {
+            return null;
+        }
+        return items.get(handle);
+    }
+
+    public void put(final int handle, final T item) {
+        if (handle < 0) {
+            return;
+        }
+        while (items.size() <= handle) {
+            items.add(null);
+        }
+        items.set(handle, item);
+    }
+
+    /**
+     * Removes the given item (only if it is the one indexed with this handle).
+     */
+    public void remove(final int handle, final T item) {
+        if (item != null && get(handle) == item) {
+            items.set(handle, null);
+            // Handles are reused by the server, only the trailing free slots can be dropped
+            int size = items.size();
+            while (size > 0 && items.get(size - 1) == null) {
+                items.remove(--size);
+            }
+        }
+    }
+
+    public void clear() {
+        items.clear();
+    }
+}
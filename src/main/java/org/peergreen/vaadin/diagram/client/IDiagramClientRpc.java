@@ -15,6 +15,10 @@
  */
 package org.peergreen.vaadin.diagram.client;
 
+import java.util.List;
+
+import org.peergreen.vaadin.diagram.client.change.ModelChange;
+
 import com.vaadin.shared.communication.ClientRpc;
 
 /**
@@ -24,7 +28,6 @@ import com.vaadin.shared.communication.ClientRpc;
 public interface IDiagramClientRpc extends ClientRpc {
 
     void init();
-    void reset();
 
     void left();
     void right();
@@ -35,25 +38,13 @@ public interface IDiagramClientRpc extends ClientRpc {
 
     void zoomOut();
 
-    void createEntity(String uuid, String name);
-    void updateEntity(String uuid, String name);
-    void deleteEntity(String uuid);
-
-    void createCompartment(String entityUuid, String uuid, String name, final String iconType);
-
-    void createRequire(String compartmentUuid, String uuid, String name);
-
-    void createProvide(String compartmentUuid, String uuid, String name);
-
-    void deleteCompartment(String uuid);
-
-    void createConnector(final String uuid, String sourceUuid, String targetUuid);
-
-    void deleteProvide(String uuid);
-
-    void deleteRequire(String uuid);
-
-    void deleteConnector(String uuid);
+    /**
+     * Applies a set of model changes (creations, updates and deletions) in one pass.
+     * The client only repaints once, after the whole list has been applied.
+     * @param sequence sequence number of this change set, incremented by one for each change set sent
+     * @param changes ordered list of changes
+     */
+    void applyChanges(int sequence, List<ModelChange> changes);
 
     void handleDrop(int x, int y, String data);
 }
\ No newline at end of file
@@ -15,6 +15,7 @@
  */
 package org.peergreen.vaadin.diagram.client;
 
+import com.vaadin.shared.annotations.Delayed;
 import com.vaadin.shared.communication.ServerRpc;
 
 /**
@@ -24,31 +25,48 @@ import com.vaadin.shared.communication.ServerRpc;
 public interface IDiagramServerRpc extends ServerRpc {
 
     /**
-     * Notifies the server that a UI element (identified by the given UUID) has been selected.
-     * @param uuid Selected UI element identifier
+     * Notifies the server that a UI element (identified by the given handle) has been selected.
+     * @param handle Selected UI element handle
      */
-    void selected(String uuid);
+    void selected(int handle);
 
     /**
-     * Notifies the server that a UI element (identified by the given UUID) should be deleted.
-     * @param uuid Deleted UI element identifier
+     * Notifies the server that a UI element (identified by the given handle) should be deleted.
+     * @param handle Deleted UI element handle
      */
-    void deleted(String uuid);
+    void deleted(int handle);
 
     /**
      * Notifies the server that a new connector should be build between the given ports.
      * The server should verify parameters, if the connection looks good, propagate it back to the client side.
-     * @param sourceUuid Identifier of the source port
-     * @param targetUuid Identifier of the target port
+     * @param sourceHandle Handle of the source port
+     * @param targetHandle Handle of the target port
      */
-    void createConnector(String sourceUuid, String targetUuid);
+    void createConnector(int sourceHandle, int targetHandle);
 
     /**
      * Notifies the server that something was dropped into the given UI Element.
-     * @param uuid Drop target
+     * @param handle Drop target (negative if nothing was hit)
      * @param data transferred data from the drag source
      */
-    void dropTarget(String uuid, final String data);
+    void dropTarget(int handle, final String data);
 
     void log(String message);
+
+    /**
+     * Notifies the server that the client missed a change set and needs a fresh snapshot of the model.
+     */
+    void resync();
+
+    /**
+     * Reports the quality used by the client to draw the diagram and the statistics of its paints.
+     * Reported when the quality changes and periodically while the diagram is painted. The call is delayed:
+     * only the last report is sent, along with the next request to the server.
+     * @param quality current quality
+     * @param frames number of paints of the scene or of the connectors since the last report
+     * @param averagePaintTime average duration of these paints (in milliseconds)
+     * @param maxPaintTime longest of these paints (in milliseconds)
+     */
+    @Delayed(lastOnly = true)
+    void renderStatistics(RenderQuality quality, int frames, double averagePaintTime, double maxPaintTime);
 }
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.List;
+
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
+import org.peergreen.vaadin.diagram.client.ui.ConnectorUI;
+import org.peergreen.vaadin.diagram.client.ui.EntityUI;
+import org.peergreen.vaadin.diagram.client.ui.UI;
+
+import com.google.gwt.canvas.dom.client.Context2d;
+import com.google.gwt.canvas.dom.client.ImageData;
+import com.google.gwt.dom.client.CanvasElement;
+import com.google.gwt.dom.client.Document;
+
+/**
+ * Hidden canvas in which each pickable UI is filled with a unique color encoding its handle: finding the UI under
+ * the mouse is a single pixel read, exact for any shape (rounded headers, triangles, thick connectors).
+ * The color holds the handle + 1 on 20 bits followed by a 4 bits checksum. Pixels blended by the anti-aliasing
+ * (translucent or failing the checksum) are ambiguous, the caller then falls back to the geometric hit-testing.
+ * The buffer covers the viewport and is only rendered again, when queried, for the areas that have changed.
+ */
+public class PickBuffer {
+
+    /**
+     * Result of a query on an ambiguous pixel.
+     */
+    public static final int UNKNOWN = -2;
+
+    /**
+     * Number of bits of the encoded handle.
+     */
+    private static final int HANDLE_BITS = 20;
+
+    /**
+     * Color of the UIs whose handle cannot be encoded: translucent, their pixels are ambiguous.
+     */
+    private static final String UNKNOWN_COLOR = "rgba(0, 0, 0, 0.5)";
+
+    private final ClientStateModel model;
+
+    /**
+     * Created on the first query, released when the buffer is disabled.
+     */
+    private CanvasElement canvas;
+    private Context2d context;
+
+    private boolean enabled = false;
+
+    /**
+     * Area of the diagram that needs to be rendered again.
+     */
+    private final DamageRegion damage = new DamageRegion();
+
+    /**
+     * View with which the buffer has been rendered.
+     */
+    private double scale;
+    private double translateX;
+    private double translateY;
+
+    private final Rectangle renderArea = new Rectangle();
+
+    public PickBuffer(final ClientStateModel model) {
+        this.model = model;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables the buffer, its canvas is released once disabled.
+     * @param enabled true to use the buffer for the hit-testing
+     */
+    public void setEnabled(final boolean enabled) {
+        if (enabled == this.enabled) {
+            return;
+        }
+        this.enabled = enabled;
+        canvas = null;
+        context = null;
+        damage.addAll();
+    }
+
+    /**
+     * @param ui a UI bound to a diagram element
+     * @return the color encoding the handle of the UI
+     */
+    public static String getColor(final UI ui) {
+        int code = ui.getId() + 1;
+        if (code <= 0 || code >= 1 << HANDLE_BITS) {
+            return UNKNOWN_COLOR;
+        }
+        int rgb = (code << 4) | checksum(code);
+        // Leading 1 for the zero padding
+        return "#" + Integer.toHexString(rgb | 0x1000000).substring(1);
+    }
+
+    /**
+     * Finds the handle of the UI drawn at the given position.
+     * @param x X coordinate (in pixels)
+     * @param y Y coordinate (in pixels)
+     * @return the handle, {@link UI#NO_ID} if there is nothing or {@link #UNKNOWN} if the pixel is ambiguous
+     */
+    public int pick(final double x, final double y) {
+        validate();
+        int column = (int) Math.floor(x);
+        int row = (int) Math.floor(y);
+        if (column < 0 || row < 0 || column >= canvas.getWidth() || row >= canvas.getHeight()) {
+            return UNKNOWN;
+        }
+        ImageData pixel = context.getImageData(column, row, 1, 1);
+        int alpha = pixel.getAlphaAt(0, 0);
+        if (alpha == 0) {
+            return UI.NO_ID;
+        }
+        if (alpha != 255) {
+            return UNKNOWN;
+        }
+        int rgb = (pixel.getRedAt(0, 0) << 16) | (pixel.getGreenAt(0, 0) << 8) | pixel.getBlueAt(0, 0);
+        int code = rgb >> 4;
+        if (code == 0 || (rgb & 0xF) != checksum(code)) {
+            return UNKNOWN;
+        }
+        return code - 1;
+    }
+
+    /**
+     * Invalidates an area, it will be rendered again on the next query.
+     * @param area the area that has changed (in diagram coordinates)
+     */
+    public void invalidate(final Rectangle area) {
+        if (enabled) {
+            damage.add(area);
+        }
+    }
+
+    public void invalidateAll() {
+        damage.addAll();
+    }
+
+    /**
+     * XOR of the nibbles of the code, mixed so that blending two neighbouring codes rarely gives a valid color.
+     */
+    private static int checksum(final int code) {
+        int sum = code ^ (code >> 4) ^ (code >> 8) ^ (code >> 12) ^ (code >> 16);
+        return ((sum & 0xF) * 7 + 5) & 0xF;
+    }
+
+    /**
+     * Renders the damaged area, the whole buffer if it has been resized or if the view has changed.
+     */
+    private void validate() {
+        int width = (int) Math.ceil(model.getViewportWidth());
+        int height = (int) Math.ceil(model.getViewportHeight());
+        if (canvas == null) {
+            canvas = Document.get().createCanvasElement();
+            context = canvas.getContext2d();
+        }
+        if (canvas.getWidth() != width || canvas.getHeight() != height) {
+            // Resizing the canvas also clears it
+            canvas.setWidth(width);
+            canvas.setHeight(height);
+            damage.addAll();
+        }
+        if (scale != model.getScale() || translateX != model.getTranslateX() || translateY != model.getTranslateY()) {
+            scale = model.getScale();
+            translateX = model.getTranslateX();
+            translateY = model.getTranslateY();
+            damage.addAll();
+        }
+        if (damage.isEmpty()) {
+            return;
+        }
+
+        Rectangle viewport = model.getViewport();
+        context.save();
+        context.setTransform(scale, 0, 0, scale, -translateX * scale, -translateY * scale);
+        if (damage.isFull()) {
+            renderArea.set(viewport);
+            context.clearRect(viewport.getX(), viewport.getY(), viewport.getWidth(), viewport.getHeight());
+        } else {
+            damage.getBounds(renderArea).intersect(viewport);
+            List<Rectangle> rectangles = damage.getRectangles();
+            context.beginPath();
+            for (int i = 0; i < rectangles.size(); i++) {
+                Rectangle rectangle = rectangles.get(i);
+                context.rect(rectangle.getX(), rectangle.getY(), rectangle.getWidth(), rectangle.getHeight());
+            }
+            context.clip();
+            for (int i = 0; i < rectangles.size(); i++) {
+                Rectangle rectangle = rectangles.get(i);
+                context.clearRect(rectangle.getX(), rectangle.getY(), rectangle.getWidth(), rectangle.getHeight());
+            }
+        }
+
+        // Same order as the layers: the connectors are above the entities. The dragged entity and its connectors
+        // are skipped, the areas they cover are invalidated once it is dropped.
+        Context2d renderTarget = model.getRenderTarget();
+        model.setRenderTarget(context);
+        try {
+            List<EntityUI> entities = model.findEntities(renderArea);
+            for (int i = 0; i < entities.size(); i++) {
+                EntityUI entity = entities.get(i);
+                if (damage.intersects(entity.getBounds()) && !model.isLifted(entity)) {
+                    entity.drawPickArea();
+                }
+            }
+            List<ConnectorUI> connectors = model.findConnectors(renderArea);
+            for (int i = 0; i < connectors.size(); i++) {
+                ConnectorUI connector = connectors.get(i);
+                if (damage.intersects(connector.getBounds()) && !model.isLifted(connector)) {
+                    connector.drawPickArea();
+                }
+            }
+        } finally {
+            model.setRenderTarget(renderTarget);
+            context.restore();
+        }
+        damage.clear();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+/**
+ * Adapts the quality of the drawing to the measured paint time: the quality is lowered when several consecutive
+ * paints exceed the frame budget, and raised again after a long series of paints well within it, provided that
+ * the last full repaint of the scene was within it too (cheap partial paints alone do not raise it).
+ * It also keeps the statistics of the paints reported to the server.
+ */
+public class QualityGovernor {
+
+    /**
+     * Time available for a paint (in milliseconds, 60 frames per second).
+     */
+    private static final double FRAME_BUDGET = 16;
+
+    /**
+     * Number of consecutive paints over the budget lowering the quality.
+     */
+    private static final int SLOW_FRAMES = 3;
+
+    /**
+     * Number of consecutive paints under half the budget raising the quality.
+     */
+    private static final int FAST_FRAMES = 120;
+
+    private RenderQuality quality = RenderQuality.HIGH;
+
+    private int slowFrames = 0;
+    private int fastFrames = 0;
+
+    /**
+     * The last full repaint, at the current quality, took less than half the budget.
+     */
+    private boolean fastFullRepaint = false;
+
+    /**
+     * Statistics since the last report.
+     */
+    private int frames = 0;
+    private double totalPaintTime = 0;
+    private double maxPaintTime = 0;
+
+    public RenderQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Records the duration of a paint.
+     * @param paintTime duration of the paint (in milliseconds)
+     * @param fullRepaint true if the whole scene has been painted
+     * @return true if the quality has changed
+     */
+    public boolean record(final double paintTime, final boolean fullRepaint) {
+        frames++;
+        totalPaintTime += paintTime;
+        maxPaintTime = Math.max(maxPaintTime, paintTime);
+
+        if (paintTime > FRAME_BUDGET) {
+            slowFrames++;
+            fastFrames = 0;
+        } else if (paintTime < FRAME_BUDGET / 2) {
+            fastFrames++;
+            slowFrames = 0;
+        } else {
+            slowFrames = 0;
+            fastFrames = 0;
+        }
+
+        if (fullRepaint) {
+            fastFullRepaint = paintTime < FRAME_BUDGET / 2;
+        }
+
+        RenderQuality previous = quality;
+        if (slowFrames >= SLOW_FRAMES) {
+            quality = quality.lower();
+            slowFrames = 0;
+        } else if (fastFrames >= FAST_FRAMES && fastFullRepaint) {
+            quality = quality.higher();
+            fastFrames = 0;
+        }
+        if (quality != previous) {
+            // A full repaint at the new quality is needed before raising it
+            fastFullRepaint = false;
+        }
+        return quality != previous;
+    }
+
+    /**
+     * @return number of paints since the last report
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return average duration of the paints since the last report (in milliseconds)
+     */
+    public double getAveragePaintTime() {
+        if (frames == 0) {
+            return 0;
+        }
+        return totalPaintTime / frames;
+    }
+
+    /**
+     * @return longest paint since the last report (in milliseconds)
+     */
+    public double getMaxPaintTime() {
+        return maxPaintTime;
+    }
+
+    /**
+     * Starts new statistics once they have been reported.
+     */
+    public void resetStatistics() {
+        frames = 0;
+        totalPaintTime = 0;
+        maxPaintTime = 0;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+/**
+ * Quality tiers used to draw the diagram, from the best to the cheapest.
+ * The client steps down when painting exceeds the frame budget and back up when there is headroom.
+ */
+public enum RenderQuality {
+
+    /**
+     * Everything is drawn, canvases use the pixel ratio of the display.
+     */
+    HIGH(true, true, true, true),
+
+    /**
+     * Canvases use one pixel per CSS pixel.
+     */
+    STANDARD(false, true, true, true),
+
+    /**
+     * No shadow, connectors are thin lines.
+     */
+    REDUCED(false, false, true, true),
+
+    /**
+     * No icon nor text either.
+     */
+    MINIMAL(false, false, false, false);
+
+    private final boolean hiDpi;
+    private final boolean shadows;
+    private final boolean icons;
+    private final boolean text;
+
+    private RenderQuality(final boolean hiDpi, final boolean shadows, final boolean icons, final boolean text) {
+        this.hiDpi = hiDpi;
+        this.shadows = shadows;
+        this.icons = icons;
+        this.text = text;
+    }
+
+    /**
+     * @return true if canvases use the pixel ratio of HiDPI displays
+     */
+    public boolean isHiDpi() {
+        return hiDpi;
+    }
+
+    /**
+     * @return true if shadows and thick connectors are drawn
+     */
+    public boolean hasShadows() {
+        return shadows;
+    }
+
+    public boolean hasIcons() {
+        return icons;
+    }
+
+    public boolean hasText() {
+        return text;
+    }
+
+    /**
+     * @return the next cheaper quality (this one if it is already the cheapest)
+     */
+    public RenderQuality lower() {
+        RenderQuality[] values = values();
+        return values[Math.min(ordinal() + 1, values.length - 1)];
+    }
+
+    /**
+     * @return the next better quality (this one if it is already the best)
+     */
+    public RenderQuality higher() {
+        return values()[Math.max(ordinal() - 1, 0)];
+    }
+}
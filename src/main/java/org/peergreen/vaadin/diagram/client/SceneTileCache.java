@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
+import org.peergreen.vaadin.diagram.client.ui.EntityUI;
+
+import com.google.gwt.canvas.dom.client.Context2d;
+import com.google.gwt.dom.client.CanvasElement;
+import com.google.gwt.dom.client.Document;
+
+/**
+ * Cache of the scene layer: the diagram is divided into square tiles for each zoom level, each tile being rendered
+ * once in an offscreen canvas then copied on the scene until an entity intersecting it changes.
+ * Panning and zooming back to a previous level reuse the rendered tiles.
+ * The tiles are kept within a budget of pixels, the least recently used ones being evicted first.
+ */
+public class SceneTileCache {
+
+    /**
+     * Size of a tile at the nominal scale of its level (in pixels).
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Maximum number of cached tiles: about 16M pixels (64MB).
+     */
+    private static final int MAX_TILES = 256;
+
+    /**
+     * Each level covers half a zoom step around its nominal scale (a power of the zoom step).
+     */
+    private static final double ZOOM_STEP = 1.25;
+
+    /**
+     * Key of a tile. A single instance is reused for lookups.
+     */
+    private static final class TileKey {
+        private int level;
+        private int column;
+        private int row;
+
+        private TileKey set(final int level, final int column, final int row) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return (level * 31 + column) * 31 + row;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) object;
+            return level == other.level && column == other.column && row == other.row;
+        }
+    }
+
+    private static final class Tile {
+        private CanvasElement canvas;
+        private DetailLevel detailLevel;
+        private boolean valid;
+
+        /**
+         * Scale at which the tile has been rendered (pixels for a unit of the diagram).
+         */
+        private double scale;
+
+        /**
+         * Area covered by the tile (in diagram coordinates).
+         */
+        private final Rectangle bounds = new Rectangle();
+    }
+
+    private final ClientStateModel model;
+
+    /**
+     * Tiles in access order (least recently used first).
+     */
+    private final LinkedHashMap<TileKey, Tile> tiles = new LinkedHashMap<TileKey, Tile>(16, 0.75f, true);
+
+    private final TileKey lookup = new TileKey();
+
+    private final Rectangle tileArea = new Rectangle();
+
+    public SceneTileCache(final ClientStateModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Draws the damaged part of the scene from the tiles, rendering the missing or invalid ones.
+     * The drawing is expected to be clipped to the damaged area.
+     * @param context the context of the scene layer
+     * @param damage the damaged area
+     * @param area bounds of the damaged area within the viewport (in diagram coordinates)
+     */
+    public void draw(final Context2d context, final DamageRegion damage, final Rectangle area) {
+        double scale = model.getPixelScale();
+        int level = (int) Math.round(Math.log(scale) / Math.log(ZOOM_STEP));
+        double tileSize = TILE_SIZE / Math.pow(ZOOM_STEP, level);
+        DetailLevel detailLevel = model.getDetailLevel();
+        double translateX = model.getTranslateX();
+        double translateY = model.getTranslateY();
+
+        int minColumn = (int) Math.floor(area.getX() / tileSize);
+        int maxColumn = (int) Math.floor(area.getMaxX() / tileSize);
+        int minRow = (int) Math.floor(area.getY() / tileSize);
+        int maxRow = (int) Math.floor(area.getMaxY() / tileSize);
+
+        // Tiles are copied in pixels, their edges rounded the same way so they join without seams
+        context.save();
+        context.setTransform(1, 0, 0, 1, 0, 0);
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                tileArea.set(column * tileSize, row * tileSize, tileSize, tileSize);
+                if (!damage.intersects(tileArea)) {
+                    continue;
+                }
+                Tile tile = tiles.get(lookup.set(level, column, row));
+                if (tile == null || !tile.valid || tile.detailLevel != detailLevel
+                        || (tile.scale != scale && !model.isAnimating())) {
+                    // Tiles rendered at a close scale are stretched during an animation
+                    tile = render(tile, level, column, row, scale, detailLevel);
+                }
+                double left = Math.round((tileArea.getX() - translateX) * scale);
+                double top = Math.round((tileArea.getY() - translateY) * scale);
+                double right = Math.round((tileArea.getMaxX() - translateX) * scale);
+                double bottom = Math.round((tileArea.getMaxY() - translateY) * scale);
+                double sourceSize = tileSize * tile.scale;
+                context.drawImage(tile.canvas, 0, 0, sourceSize, sourceSize, left, top, right - left, bottom - top);
+            }
+        }
+        context.restore();
+        evict();
+    }
+
+    /**
+     * Invalidates the tiles intersecting an area, they will be rendered again when painted.
+     * @param area the area that has changed (in diagram coordinates)
+     */
+    public void invalidate(final Rectangle area) {
+        for (Tile tile : tiles.values()) {
+            if (tile.valid && tile.bounds.intersects(area)) {
+                tile.valid = false;
+            }
+        }
+    }
+
+    public void clear() {
+        tiles.clear();
+    }
+
+    private Tile render(final Tile previous, final int level, final int column, final int row, final double scale,
+            final DetailLevel detailLevel) {
+        Tile tile = previous;
+        if (tile == null) {
+            tile = new Tile();
+            tile.canvas = Document.get().createCanvasElement();
+            tile.bounds.set(tileArea);
+            tiles.put(new TileKey().set(level, column, row), tile);
+        }
+
+        // Resizing the canvas also clears it
+        int size = (int) Math.ceil(tile.bounds.getWidth() * scale);
+        tile.canvas.setWidth(size);
+        tile.canvas.setHeight(size);
+        tile.scale = scale;
+        Context2d context = tile.canvas.getContext2d();
+        context.setTransform(scale, 0, 0, scale, -tile.bounds.getX() * scale, -tile.bounds.getY() * scale);
+
+        EntityBitmapCache entityBitmapCache = model.getEntityBitmapCache();
+        EntityUI draggedEntity = model.getDraggedEntity();
+        Context2d renderTarget = model.getRenderTarget();
+        model.setRenderTarget(context);
+        try {
+            List<EntityUI> entities = model.findEntities(tile.bounds);
+            for (int i = 0; i < entities.size(); i++) {
+                EntityUI entity = entities.get(i);
+                if (entity == draggedEntity) {
+                    continue;
+                }
+                if (!entityBitmapCache.draw(entity, context)) {
+                    entity.draw();
+                }
+            }
+        } finally {
+            model.setRenderTarget(renderTarget);
+        }
+
+        tile.detailLevel = detailLevel;
+        // Invalidated again when an icon of an entity finishes loading
+        tile.valid = true;
+        return tile;
+    }
+
+    /**
+     * Removes the least recently used tiles until the budget is met.
+     */
+    private void evict() {
+        Iterator<Tile> iterator = tiles.values().iterator();
+        while (tiles.size() > MAX_TILES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
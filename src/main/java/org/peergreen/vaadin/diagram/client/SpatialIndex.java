@@ -0,0 +1,311 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
+import org.peergreen.vaadin.diagram.client.ui.UI;
+
+/**
+ * Uniform grid over the bounds of UIs, used to find the few UIs that may be hit by a point.
+ * UIs are returned in the order they were first added, as the hit-testing relies on this order.
+ * @param <T> indexed type
+ */
+public class SpatialIndex<T extends UI> {
+
+    /**
+     * Size of a cell (in diagram coordinates).
+     */
+    private static final double CELL_SIZE = 256;
+
+    /**
+     * UIs covering more cells than this are not stored in the grid, they are always candidates.
+     */
+    private static final int MAX_CELLS = 256;
+
+    /**
+     * Key of a cell. A single instance is reused for lookups.
+     */
+    private static final class CellKey {
+        private int x;
+        private int y;
+
+        private CellKey set(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return x * 31 + y;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof CellKey)) {
+                return false;
+            }
+            CellKey other = (CellKey) object;
+            return x == other.x && y == other.y;
+        }
+    }
+
+    /**
+     * Location of a UI in the grid. Cells hold the entries, so the insertion order is at hand when sorting.
+     */
+    private static final class Entry<T> {
+        private final T ui;
+        private final int order;
+        /**
+         * Position in the list of all the entries.
+         */
+        private int index;
+        private int stamp;
+        private boolean oversized;
+        private int minX;
+        private int minY;
+        private int maxX;
+        private int maxY;
+
+        private Entry(final T ui, final int order) {
+            this.ui = ui;
+            this.order = order;
+        }
+    }
+
+    private final Map<CellKey, List<Entry<T>>> cells = new HashMap<CellKey, List<Entry<T>>>();
+
+    private final CellKey lookup = new CellKey();
+
+    /**
+     * Entries by UI, only used when a UI is updated or removed.
+     */
+    private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+
+    /**
+     * All the entries, for the queries checking each of them (in no particular order).
+     */
+    private final List<Entry<T>> all = new ArrayList<Entry<T>>();
+
+    private final List<Entry<T>> oversized = new ArrayList<Entry<T>>();
+
+    /**
+     * Entries found by the current query, before they are sorted.
+     */
+    private final List<Entry<T>> found = new ArrayList<Entry<T>>();
+
+    private int sequence = 0;
+
+    /**
+     * Incremented on each area query to report each UI only once.
+     */
+    private int stamp = 0;
+
+    /**
+     * Sorts UIs on their insertion order.
+     */
+    private final Comparator<Entry<T>> insertionOrder = new Comparator<Entry<T>>() {
+        @Override
+        public int compare(final Entry<T> first, final Entry<T> second) {
+            return first.order - second.order;
+        }
+    };
+
+    /**
+     * Adds the UI or updates its location after its bounds have changed.
+     * @param ui the UI to index
+     */
+    public void update(final T ui) {
+        Entry<T> entry = entries.get(ui);
+        if (entry == null) {
+            entry = new Entry<T>(ui, sequence++);
+            entries.put(ui, entry);
+            entry.index = all.size();
+            all.add(entry);
+        } else {
+            unlink(entry);
+        }
+
+        Rectangle bounds = ui.getBounds();
+        entry.minX = cell(bounds.getX());
+        entry.minY = cell(bounds.getY());
+        entry.maxX = cell(bounds.getMaxX());
+        entry.maxY = cell(bounds.getMaxY());
+        entry.oversized = (entry.maxX - entry.minX + 1) * (entry.maxY - entry.minY + 1) > MAX_CELLS;
+
+        if (entry.oversized) {
+            oversized.add(entry);
+            return;
+        }
+        for (int x = entry.minX; x <= entry.maxX; x++) {
+            for (int y = entry.minY; y <= entry.maxY; y++) {
+                List<Entry<T>> cell = cells.get(lookup.set(x, y));
+                if (cell == null) {
+                    cell = new ArrayList<Entry<T>>();
+                    cells.put(new CellKey().set(x, y), cell);
+                }
+                cell.add(entry);
+            }
+        }
+    }
+
+    public void remove(final T ui) {
+        Entry<T> entry = entries.remove(ui);
+        if (entry != null) {
+            unlink(entry);
+            // The last entry takes its place
+            Entry<T> last = all.remove(all.size() - 1);
+            if (last != entry) {
+                last.index = entry.index;
+                all.set(entry.index, last);
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        entries.clear();
+        all.clear();
+        oversized.clear();
+        sequence = 0;
+    }
+
+    /**
+     * Appends the UIs whose bounds may contain the given point to the result, in their insertion order.
+     * @param x diagram X coordinate
+     * @param y diagram Y coordinate
+     * @param result list receiving the candidates
+     */
+    public void query(final double x, final double y, final List<? super T> result) {
+        found.clear();
+        List<Entry<T>> cell = cells.get(lookup.set(cell(x), cell(y)));
+        if (cell != null) {
+            for (int i = 0; i < cell.size(); i++) {
+                Entry<T> entry = cell.get(i);
+                if (entry.ui.getBounds().contains(x, y)) {
+                    found.add(entry);
+                }
+            }
+        }
+        for (int i = 0; i < oversized.size(); i++) {
+            Entry<T> entry = oversized.get(i);
+            if (entry.ui.getBounds().contains(x, y)) {
+                found.add(entry);
+            }
+        }
+        sortInto(result);
+    }
+
+    /**
+     * Appends the UIs whose bounds intersect the given area to the result, in their insertion order.
+     * @param area area of the diagram
+     * @param result list receiving the UIs
+     */
+    public void query(final Rectangle area, final List<? super T> result) {
+        if (area.isEmpty()) {
+            return;
+        }
+        found.clear();
+        stamp++;
+        int minX = cell(area.getX());
+        int minY = cell(area.getY());
+        int maxX = cell(area.getMaxX());
+        int maxY = cell(area.getMaxY());
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) > entries.size()) {
+            // Larger area than the number of UIs: check each of them
+            for (int i = 0; i < all.size(); i++) {
+                collect(all.get(i), area);
+            }
+        } else {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    List<Entry<T>> cell = cells.get(lookup.set(x, y));
+                    if (cell != null) {
+                        for (int i = 0; i < cell.size(); i++) {
+                            collect(cell.get(i), area);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < oversized.size(); i++) {
+                collect(oversized.get(i), area);
+            }
+        }
+        sortInto(result);
+    }
+
+    private void collect(final Entry<T> entry, final Rectangle area) {
+        if (entry.stamp != stamp) {
+            entry.stamp = stamp;
+            if (entry.ui.getBounds().intersects(area)) {
+                found.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Sorts the entries found by the query on their insertion order and appends their UI to the result.
+     * Candidates are usually a few, so they are sorted in place.
+     */
+    private void sortInto(final List<? super T> result) {
+        if (found.size() > 16) {
+            Collections.sort(found, insertionOrder);
+        } else {
+            for (int i = 1; i < found.size(); i++) {
+                Entry<T> entry = found.get(i);
+                int j = i - 1;
+                while (j >= 0 && found.get(j).order > entry.order) {
+                    found.set(j + 1, found.get(j));
+                    j--;
+                }
+                found.set(j + 1, entry);
+            }
+        }
+        for (int i = 0; i < found.size(); i++) {
+            result.add(found.get(i).ui);
+        }
+        found.clear();
+    }
+
+    private void unlink(final Entry<T> entry) {
+        if (entry.oversized) {
+            oversized.remove(entry);
+            return;
+        }
+        for (int x = entry.minX; x <= entry.maxX; x++) {
+            for (int y = entry.minY; y <= entry.maxY; y++) {
+                List<Entry<T>> cell = cells.get(lookup.set(x, y));
+                if (cell != null) {
+                    cell.remove(entry);
+                    if (cell.isEmpty()) {
+                        cells.remove(lookup);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int cell(final double coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client.change;
+
+import java.io.Serializable;
+
+/**
+ * A single model mutation sent from the server to the client.
+ * Changes are transferred in bulk (see {@link org.peergreen.vaadin.diagram.client.IDiagramClientRpc#applyChanges(java.util.List)})
+ * so that a whole subtree or change set reaches the client in one message and is applied in one pass.
+ * Elements are identified by their handle (a small integer assigned by the diagram), not by their UUID.
+ * Only the properties relevant to the change type are filled.
+ */
+public class ModelChange implements Serializable {
+
+    /**
+     * Serial Version UID.
+     */
+    private static final long serialVersionUID = -4139527023466203542L;
+
+    private ChangeType type;
+
+    /**
+     * Handle of the element being created, updated or deleted.
+     */
+    private int id;
+
+    /**
+     * Handle of the enclosing element (entity for a compartment, compartment for a port).
+     */
+    private int parentId;
+
+    private String name;
+
+    private String iconType;
+
+    /**
+     * Handles of the connector extremities.
+     */
+    private int sourceId;
+    private int targetId;
+
+    public ModelChange() {
+    }
+
+    public ModelChange(final ChangeType type, final int id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    public static ModelChange createEntity(final int id, final String name) {
+        ModelChange change = new ModelChange(ChangeType.CREATE_ENTITY, id);
+        change.setName(name);
+        return change;
+    }
+
+    public static ModelChange updateEntity(final int id, final String name) {
+        ModelChange change = new ModelChange(ChangeType.UPDATE_ENTITY, id);
+        change.setName(name);
+        return change;
+    }
+
+    public static ModelChange createCompartment(final int entityId, final int id, final String name, final String iconType) {
+        ModelChange change = new ModelChange(ChangeType.CREATE_COMPARTMENT, id);
+        change.setParentId(entityId);
+        change.setName(name);
+        change.setIconType(iconType);
+        return change;
+    }
+
+    public static ModelChange createRequire(final int compartmentId, final int id, final String name) {
+        ModelChange change = new ModelChange(ChangeType.CREATE_REQUIRE, id);
+        change.setParentId(compartmentId);
+        change.setName(name);
+        return change;
+    }
+
+    public static ModelChange createProvide(final int compartmentId, final int id, final String name) {
+        ModelChange change = new ModelChange(ChangeType.CREATE_PROVIDE, id);
+        change.setParentId(compartmentId);
+        change.setName(name);
+        return change;
+    }
+
+    public static ModelChange createConnector(final int id, final int sourceId, final int targetId) {
+        ModelChange change = new ModelChange(ChangeType.CREATE_CONNECTOR, id);
+        change.setSourceId(sourceId);
+        change.setTargetId(targetId);
+        return change;
+    }
+
+    public ChangeType getType() {
+        return type;
+    }
+
+    public void setType(final ChangeType type) {
+        this.type = type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(final int id) {
+        this.id = id;
+    }
+
+    public int getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(final int parentId) {
+        this.parentId = parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    public String getIconType() {
+        return iconType;
+    }
+
+    public void setIconType(final String iconType) {
+        this.iconType = iconType;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public void setSourceId(final int sourceId) {
+        this.sourceId = sourceId;
+    }
+
+    public int getTargetId() {
+        return targetId;
+    }
+
+    public void setTargetId(final int targetId) {
+        this.targetId = targetId;
+    }
+}
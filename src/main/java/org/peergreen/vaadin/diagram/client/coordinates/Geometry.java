@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client.coordinates;
+
+/**
+ * Geometry helpers working on raw coordinates (no allocation).
+ */
+public final class Geometry {
+
+    private Geometry() {
+    }
+
+    /**
+     * Computes the square of the distance between a point and a segment.
+     * @param x X coordinate of the point
+     * @param y Y coordinate of the point
+     * @param x1 X coordinate of the start of the segment
+     * @param y1 Y coordinate of the start of the segment
+     * @param x2 X coordinate of the end of the segment
+     * @param y2 Y coordinate of the end of the segment
+     * @return the squared distance
+     */
+    public static double distanceToSegmentSquared(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            // Projection of the point on the segment, clamped to its extremities
+            t = ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+        }
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * Checks if a segment crosses a box (Liang-Barsky clipping).
+     * @return true if part of the segment is inside the box
+     */
+    public static boolean segmentIntersectsBox(double x1, double y1, double x2, double y2, final Rectangle box) {
+        if (box.isEmpty()) {
+            return false;
+        }
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        // Parametric range of the segment that is inside the box
+        double t0 = 0;
+        double t1 = 1;
+        for (int edge = 0; edge < 4; edge++) {
+            double p;
+            double q;
+            switch (edge) {
+                case 0:
+                    p = -dx;
+                    q = x1 - box.getX();
+                    break;
+                case 1:
+                    p = dx;
+                    q = box.getMaxX() - x1;
+                    break;
+                case 2:
+                    p = -dy;
+                    q = y1 - box.getY();
+                    break;
+                default:
+                    p = dy;
+                    q = box.getMaxY() - y1;
+                    break;
+            }
+            if (p == 0) {
+                // Parallel to this edge: outside if on the wrong side
+                if (q < 0) {
+                    return false;
+                }
+                continue;
+            }
+            double t = q / p;
+            if (p < 0) {
+                if (t > t1) {
+                    return false;
+                }
+                t0 = Math.max(t0, t);
+            } else {
+                if (t < t0) {
+                    return false;
+                }
+                t1 = Math.min(t1, t);
+            }
+        }
+        return true;
+    }
+}
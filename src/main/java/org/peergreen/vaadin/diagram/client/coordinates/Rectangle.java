@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client.coordinates;
+
+/**
+ * Mutable axis-aligned rectangle.
+ * Rectangles are reused by their owners to avoid allocations while drawing and hit-testing.
+ */
+public class Rectangle {
+
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+
+    private boolean empty = true;
+
+    public Rectangle() {
+    }
+
+    public Rectangle(double x, double y, double width, double height) {
+        set(x, y, width, height);
+    }
+
+    public double getX() {
+        return minX;
+    }
+
+    public double getY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public double getWidth() {
+        return maxX - minX;
+    }
+
+    public double getHeight() {
+        return maxY - minY;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Resets this rectangle, it then covers no area.
+     * @return this rectangle
+     */
+    public Rectangle setEmpty() {
+        empty = true;
+        minX = 0;
+        minY = 0;
+        maxX = 0;
+        maxY = 0;
+        return this;
+    }
+
+    public Rectangle set(double x, double y, double width, double height) {
+        empty = false;
+        minX = x;
+        minY = y;
+        maxX = x + width;
+        maxY = y + height;
+        return this;
+    }
+
+    public Rectangle set(final Rectangle other) {
+        empty = other.empty;
+        minX = other.minX;
+        minY = other.minY;
+        maxX = other.maxX;
+        maxY = other.maxY;
+        return this;
+    }
+
+    /**
+     * Extends this rectangle to include the given area.
+     * @return this rectangle
+     */
+    public Rectangle add(double x, double y, double width, double height) {
+        if (empty) {
+            return set(x, y, width, height);
+        }
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x + width);
+        maxY = Math.max(maxY, y + height);
+        return this;
+    }
+
+    /**
+     * Extends this rectangle to include the other one.
+     * @return this rectangle
+     */
+    public Rectangle add(final Rectangle other) {
+        if (other.empty) {
+            return this;
+        }
+        return add(other.minX, other.minY, other.getWidth(), other.getHeight());
+    }
+
+    /**
+     * Extends this rectangle by the given margin on each side.
+     * @return this rectangle
+     */
+    public Rectangle grow(double margin) {
+        if (!empty) {
+            minX -= margin;
+            minY -= margin;
+            maxX += margin;
+            maxY += margin;
+        }
+        return this;
+    }
+
+    /**
+     * Restricts this rectangle to its intersection with the other one.
+     * @return this rectangle (empty if they do not intersect)
+     */
+    public Rectangle intersect(final Rectangle other) {
+        if (!intersects(other)) {
+            return setEmpty();
+        }
+        minX = Math.max(minX, other.minX);
+        minY = Math.max(minY, other.minY);
+        maxX = Math.min(maxX, other.maxX);
+        maxY = Math.min(maxY, other.maxY);
+        return this;
+    }
+
+    public boolean contains(double x, double y) {
+        return !empty && x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    public boolean intersects(final Rectangle other) {
+        return !empty && !other.empty
+                && other.minX <= maxX && other.maxX >= minX
+                && other.minY <= maxY && other.maxY >= minY;
+    }
+
+}
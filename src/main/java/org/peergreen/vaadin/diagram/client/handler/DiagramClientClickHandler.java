@@ -19,7 +19,6 @@ import org.peergreen.vaadin.diagram.client.ClientStateModel;
 import org.peergreen.vaadin.diagram.client.DiagramConnector;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
 import org.peergreen.vaadin.diagram.client.event.IObjectClick;
-import org.peergreen.vaadin.diagram.client.select.ISelectable;
 import org.peergreen.vaadin.diagram.client.ui.UI;
 
 import com.google.gwt.event.dom.client.ClickEvent;
@@ -40,25 +39,8 @@ public class DiagramClientClickHandler extends DiagramMouseEventHandler implemen
         IScaledPoint point = getModel().buildScalePoint(event);
         getModel().setMouseCoordinates(point);
 
-        UI selectedUI = null;
-
         // Do we have a matching shape ?
-        for (UI ui : getModel().getAllUIs()) {
-
-            // Can we select this UI ?
-            if (!(ui instanceof ISelectable)) {
-                continue;
-            }
-
-            ISelectable selectableUI = (ISelectable) ui;
-            selectedUI = selectableUI.getSelectedUI(point);
-
-            // found something, stop
-            if (selectedUI != null) {
-                break;
-            }
-
-        }
+        UI selectedUI = getModel().findUI(point, true);
 
         getModel().setSelectedUI(selectedUI);
 
@@ -15,6 +15,8 @@
  */
 package org.peergreen.vaadin.diagram.client.handler;
 
+import java.util.List;
+
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
 import org.peergreen.vaadin.diagram.client.DiagramConnector;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
@@ -43,7 +45,10 @@ public class DiagramClientMouseDownHandler extends DiagramMouseEventHandler impl
         IScaledPoint point = getModel().buildScalePoint(event);
 
         // Do we have a matching shape ?
-        for (UI ui : getModel().getRootUIs()) {
+        boolean onAShape = false;
+        List<UI> candidates = getModel().findCandidates(point, false);
+        for (int i = 0; i < candidates.size(); i++) {
+            UI ui = candidates.get(i);
 
             // Can we select this UI ?
             if (!(ui instanceof ISelectable)) {
@@ -53,6 +58,7 @@ public class DiagramClientMouseDownHandler extends DiagramMouseEventHandler impl
             ISelectable selectableUI = (ISelectable) ui;
             UI selectedUI = selectableUI.getSelectedUI(point);
             if (selectedUI != null) {
+                onAShape = true;
                 if (selectedUI instanceof IObjectMouseDown) {
                     IObjectMouseDown objectMouseDown = (IObjectMouseDown) selectedUI;
                     objectMouseDown.mouseDown(event);
@@ -64,6 +70,11 @@ public class DiagramClientMouseDownHandler extends DiagramMouseEventHandler impl
                 }
             }
         }
+
+        // Dragging the background pans the diagram
+        if (!onAShape) {
+            getModel().startPan(point.getOriginalX(), point.getOriginalY());
+        }
     }
 
 }
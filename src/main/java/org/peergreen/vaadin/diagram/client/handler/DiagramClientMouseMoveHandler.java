@@ -22,7 +22,7 @@ import org.peergreen.vaadin.diagram.client.ClientStateModel;
 import org.peergreen.vaadin.diagram.client.DiagramConnector;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
 import org.peergreen.vaadin.diagram.client.move.IMovable;
-import org.peergreen.vaadin.diagram.client.select.ISelectable;
+import org.peergreen.vaadin.diagram.client.ui.EntityUI;
 import org.peergreen.vaadin.diagram.client.ui.UI;
 
 import com.google.gwt.event.dom.client.MouseMoveEvent;
@@ -50,42 +50,44 @@ public class DiagramClientMouseMoveHandler extends DiagramMouseEventHandler impl
         IScaledPoint point = getModel().buildScalePoint(event);
         getModel().setMouseCoordinates(point);
 
+        if (getModel().isPanning()) {
+            getConnector().setCursor(MOVE);
+            getConnector().pan(point.getOriginalX() - getModel().getPanX(), point.getOriginalY() - getModel().getPanY());
+            getModel().setPan(point.getOriginalX(), point.getOriginalY());
+            return;
+        }
+
         UI currentUI = getModel().getCurrentUI();
 
         if (currentUI != null) {
             if (currentUI instanceof IMovable) {
                 IMovable movable = (IMovable) getModel().getCurrentUI();
                 getConnector().setCursor(MOVE);
+                // The dragged entity is moved on the overlay, the other layers are kept as they are
+                if (currentUI instanceof EntityUI && getModel().getDraggedEntity() != currentUI) {
+                    getModel().startDrag((EntityUI) currentUI);
+                }
                 movable.moveTo(point);
                 getConnector().redraw();
                 return;
             }
         }
 
-        boolean onAShape = false;
-
-        UI mouseOverUI = getModel().getCurrentMouseOverUI();
-
-        for (UI ui : getModel().getAllUIs()) {
-            if (ui instanceof ISelectable) {
-                UI selectedUI = ((ISelectable) ui).getSelectedUI(point);
-                if (selectedUI != null) {
-                    onAShape = true;
-                    mouseOverUI = selectedUI;
-                    break;
-                }
-            }
-        }
-        if (onAShape) {
-            getModel().setCurrentMouseOverUI(mouseOverUI);
+        UI previousMouseOverUI = getModel().getCurrentMouseOverUI();
+        UI mouseOverUI = getModel().findUI(point, true);
+        if (mouseOverUI != null) {
             getConnector().setCursor(POINTER);
         } else {
-            getModel().setCurrentMouseOverUI(null);
             getConnector().unsetCursor();
         }
 
-        // redraw
-        getConnector().redraw();
+        // Only the previous and the new hovered UIs need to be painted again (the temporary UI follows the mouse)
+        if (mouseOverUI != previousMouseOverUI) {
+            getModel().setCurrentMouseOverUI(mouseOverUI);
+            getConnector().redraw();
+        } else if (getModel().getTempDrawUI() != null) {
+            getConnector().redraw();
+        }
 
     }
 }
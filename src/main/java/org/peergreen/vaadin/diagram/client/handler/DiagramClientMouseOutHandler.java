@@ -33,6 +33,7 @@ public class DiagramClientMouseOutHandler extends DiagramMouseEventHandler imple
 
     @Override
     public void onMouseOut(MouseOutEvent event) {
+        getModel().endPan();
         getConnector().unsetCursor();
     }
 }
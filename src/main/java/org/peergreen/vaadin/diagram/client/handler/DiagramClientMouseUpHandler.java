@@ -43,8 +43,14 @@ public class DiagramClientMouseUpHandler extends DiagramMouseEventHandler implem
     @Override
     public void onMouseUp(MouseUpEvent event) {
 
+        // Drop the dragged entity first: the spatial indexes are up to date again
+        getModel().endDrag();
+        getModel().endPan();
+
         IScaledPoint point = getModel().buildScalePoint(event);
-        for (UI ui : getModel().getRootUIs()) {
+        List<UI> candidates = getModel().findCandidates(point, false);
+        for (int i = 0; i < candidates.size(); i++) {
+            UI ui = candidates.get(i);
             if (ui instanceof ISelectable) {
                 UI selectedUI = ((ISelectable) ui).getSelectedUI(point);
                 if (selectedUI != null) {
@@ -61,7 +67,9 @@ public class DiagramClientMouseUpHandler extends DiagramMouseEventHandler implem
 
         // Notify global listeners
         List<AbstractUI> globalEventsCallbacks = getModel().getGlobalEventCallbacks();
-        for (AbstractUI abstractUI : globalEventsCallbacks) {
+        // Backward iteration as the callbacks may unregister themselves
+        for (int i = globalEventsCallbacks.size() - 1; i >= 0; i--) {
+            AbstractUI abstractUI = globalEventsCallbacks.get(i);
             if (abstractUI instanceof IGlobalMouseUp) {
                 ((IGlobalMouseUp) abstractUI).globalMouseUp(event);
             }
@@ -33,11 +33,9 @@ public class DiagramClientMouseWheelHandler extends DiagramMouseEventHandler imp
 
     @Override
     public void onMouseWheel(MouseWheelEvent event) {
-        if (event.isNorth()) {
-            getConnector().doZoomOut();
-        } else if (event.isSouth()){
-            getConnector().doZoomIn();
-        }
+        // Do not scroll the page
+        event.preventDefault();
+        getConnector().zoomWheel(event.getDeltaY(), event.getX(), event.getY());
     }
 
 }
\ No newline at end of file
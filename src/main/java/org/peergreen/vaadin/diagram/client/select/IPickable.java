@@ -0,0 +1,29 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram.client.select;
+
+/**
+ * UI objects implementing this interface are drawn in the pick buffer, filled with the color encoding their handle.
+ */
+public interface IPickable {
+
+    /**
+     * Fills the area in which this UI (and its children) can be selected, the colors being given by
+     * {@link org.peergreen.vaadin.diagram.client.PickBuffer#getColor(org.peergreen.vaadin.diagram.client.ui.UI)}.
+     */
+    void drawPickArea();
+
+}
@@ -17,6 +17,7 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 
 import com.google.gwt.canvas.dom.client.Context2d;
 
@@ -28,9 +29,16 @@ public abstract class AbstractUI implements UI {
 
     private final ClientStateModel clientStateModel;
 
-    private final String id;
+    private final int id;
 
-    public AbstractUI(ClientStateModel clientStateModel, String id) {
+    private final Rectangle bounds = new Rectangle();
+
+    /**
+     * The bounds are up to date (only for UIs whose bounds are cached).
+     */
+    private boolean boundsValid = false;
+
+    public AbstractUI(ClientStateModel clientStateModel, int id) {
         this.clientStateModel = clientStateModel;
         this.id = id;
     }
@@ -41,7 +49,7 @@ public abstract class AbstractUI implements UI {
     }
 
     @Override
-    public String getId() {
+    public int getId() {
         return id;
     }
 
@@ -50,5 +58,35 @@ public abstract class AbstractUI implements UI {
         return clientStateModel;
     }
 
+    @Override
+    public Rectangle getBounds() {
+        if (!boundsValid) {
+            computeBounds(bounds.setEmpty());
+            boundsValid = isBoundsCached();
+        }
+        return bounds;
+    }
+
+    /**
+     * @return true if the bounds are kept until {@link #invalidateBounds()} is called,
+     * false if they are computed again on each call
+     */
+    protected boolean isBoundsCached() {
+        return false;
+    }
+
+    /**
+     * Discards the cached bounds, they will be computed again on the next call to {@link #getBounds()}.
+     */
+    public void invalidateBounds() {
+        boundsValid = false;
+    }
+
+    /**
+     * Computes the area covered by this UI.
+     * @param bounds the empty rectangle to fill
+     */
+    protected abstract void computeBounds(Rectangle bounds);
+
 
 }
@@ -17,12 +17,17 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.PickBuffer;
+import org.peergreen.vaadin.diagram.client.RenderQuality;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IKeyUp;
+import org.peergreen.vaadin.diagram.client.select.IPickable;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
 import com.google.gwt.canvas.dom.client.Context2d;
@@ -36,7 +41,7 @@ import com.google.gwt.user.client.ui.Image;
  * Date: 05/11/13
  * Time: 13:01
  */
-public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
+public class CompartmentUI extends AbstractUI implements ISelectable, IPickable, IKeyUp {
 
     private final EntityUI parent;
     private String name = "Anonymous";
@@ -44,10 +49,19 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
 
     private final List<ProvideUI> provides = new ArrayList<ProvideUI>();
     private final List<RequireUI> requires = new ArrayList<RequireUI>();
+    private final List<ProvideUI> providesView = Collections.unmodifiableList(provides);
+    private final List<RequireUI> requiresView = Collections.unmodifiableList(requires);
     private final double innerBorderWidth = 5;
+    private final double shadowBlur = 10;
     private ImageElement iconImage;
 
-    public CompartmentUI(final ClientStateModel model, final String id, EntityUI parent) {
+    /**
+     * Geometry computed by the layout of the entity.
+     */
+    private double layoutY;
+    private double layoutHeight;
+
+    public CompartmentUI(final ClientStateModel model, final int id, EntityUI parent) {
         super(model, id);
         this.parent = parent;
     }
@@ -58,22 +72,81 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
 
     public void setName(final String name) {
         this.name = name;
+        parent.contentChanged();
     }
 
     public void setIconUrl(final String iconUrl) {
         if (iconUrl != null) {
             this.iconImage = ImageElement.as(new Image(iconUrl).getElement());
+            if (!isIconLoaded()) {
+                listenIconLoad(iconImage);
+            }
         } else {
             this.iconImage = null;
         }
+        parent.contentChanged();
+    }
+
+    /**
+     * @return false if the icon is still loading
+     */
+    public boolean isIconLoaded() {
+        return iconImage == null || iconImage.getPropertyBoolean("complete");
+    }
+
+    /**
+     * Paints the entity again once the icon is loaded, instead of polling it on each frame.
+     * An error also ends the loading (nothing is drawn for a broken image).
+     */
+    private native void listenIconLoad(final ImageElement image) /*-{
+        var self = this;
+        var loaded = $entry(function() {
+            image.onload = null;
+            image.onerror = null;
+            self.@org.peergreen.vaadin.diagram.client.ui.CompartmentUI::iconLoaded(Lcom/google/gwt/dom/client/ImageElement;)(image);
+        });
+        image.onload = loaded;
+        image.onerror = loaded;
+    }-*/;
+
+    private void iconLoaded(final ImageElement image) {
+        // Ignore an icon that has been replaced
+        if (image == iconImage) {
+            getModel().iconLoaded(parent);
+        }
     }
 
     public double getHeight() {
+        parent.validateLayout();
+        return layoutHeight;
+    }
+
+    /**
+     * Computes the geometry of this compartment and of its ports.
+     * @param originY Y coordinate of the compartment
+     */
+    void layout(final double originY) {
+        double baseHeight = parent.getCompartmentBaseHeight();
         int units = Math.max(provides.size(), requires.size());
         if (units == 0) {
             units = 1;
         }
-        return units * parent.getCompartmentBaseHeight();
+        layoutY = originY;
+        layoutHeight = units * baseHeight;
+        for (int i = 0; i < requires.size(); i++) {
+            requires.get(i).setOriginY(originY + i * baseHeight);
+        }
+        for (int i = 0; i < provides.size(); i++) {
+            provides.get(i).setOriginY(originY + i * baseHeight);
+        }
+    }
+
+    double getLayoutY() {
+        return layoutY;
+    }
+
+    double getLayoutHeight() {
+        return layoutHeight;
     }
 
     private boolean isInside(IPoint point) {
@@ -103,9 +176,11 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
 
         getCanvas().save();
         getCanvas().setFillStyle(fillStyle);
-        if (this.equals(getModel().getCurrentMouseOverUI())) {
-            getCanvas().setShadowBlur(10);
-            getCanvas().setShadowColor("#666");
+        if (getModel().isMouseOver(this)) {
+            if (getModel().getQuality().hasShadows()) {
+                getCanvas().setShadowBlur(shadowBlur);
+                getCanvas().setShadowColor("#666");
+            }
             getCanvas().setFillStyle("#E8F4FF");
         }
         if (this.equals(getModel().getSelectedUI())) {
@@ -118,11 +193,61 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
         drawContent(x, y, width, height);
 
         // Draw Ports
-        for (RequireUI require : requires) {
-            require.draw();
+        for (int i = 0; i < requires.size(); i++) {
+            RequireUI require = requires.get(i);
+            if (getModel().isVisible(require.getBounds())) {
+                require.draw();
+            }
         }
-        for (ProvideUI provide : provides) {
-            provide.draw();
+        for (int i = 0; i < provides.size(); i++) {
+            ProvideUI provide = provides.get(i);
+            if (getModel().isVisible(provide.getBounds())) {
+                provide.draw();
+            }
+        }
+    }
+
+    @Override
+    public void drawPickArea() {
+        getCanvas().save();
+        getCanvas().setFillStyle(PickBuffer.getColor(this));
+        getCanvas().fillRect(getX(), getY(), getWidth(), getHeight());
+        getCanvas().restore();
+        for (int i = 0; i < requires.size(); i++) {
+            requires.get(i).drawPickArea();
+        }
+        for (int i = 0; i < provides.size(); i++) {
+            provides.get(i).drawPickArea();
+        }
+    }
+
+    @Override
+    public void invalidateBounds() {
+        super.invalidateBounds();
+        for (int i = 0; i < requires.size(); i++) {
+            requires.get(i).invalidateBounds();
+        }
+        for (int i = 0; i < provides.size(); i++) {
+            provides.get(i).invalidateBounds();
+        }
+    }
+
+    /**
+     * Invalidated with the layout of the entity.
+     */
+    @Override
+    protected boolean isBoundsCached() {
+        return true;
+    }
+
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        bounds.set(getX(), getY(), getWidth(), getHeight()).grow(shadowBlur);
+        for (int i = 0; i < requires.size(); i++) {
+            bounds.add(requires.get(i).getBounds());
+        }
+        for (int i = 0; i < provides.size(); i++) {
+            bounds.add(provides.get(i).getBounds());
         }
     }
 
@@ -156,7 +281,8 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
             }
         }
 
-        if (iconImage != null) {
+        RenderQuality quality = getModel().getQuality();
+        if (iconImage != null && quality.hasIcons()) {
             getCanvas().drawImage(
                     iconImage,
                     x + innerBorderWidth,
@@ -166,6 +292,9 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
             );
         }
 
+        if (!quality.hasText()) {
+            return;
+        }
         getCanvas().save();
         getCanvas().setFillStyle("black");
         getCanvas().setFont("14px arial");
@@ -177,14 +306,14 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
     @Override
     public UI getSelectedUI(final IScaledPoint point) {
         // Check ports
-        for (RequireUI require : requires) {
-            UI ui = require.getSelectedUI(point);
+        for (int i = 0; i < requires.size(); i++) {
+            UI ui = requires.get(i).getSelectedUI(point);
             if (ui != null) {
                 return ui;
             }
         }
-        for (ProvideUI provide : provides) {
-            UI ui = provide.getSelectedUI(point);
+        for (int i = 0; i < provides.size(); i++) {
+            UI ui = provides.get(i).getSelectedUI(point);
             if (ui != null) {
                 return ui;
             }
@@ -205,22 +334,16 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
     }
 
     public double getPortOriginY(final RequireUI ui) {
-        return getPortOriginY(requires, ui);
+        return getPortOriginY((PortUI) ui);
     }
 
-    private double getPortOriginY(final List<? extends PortUI> ports, final PortUI ui) {
-        int target = ports.indexOf(ui);
-        double y = this.getY();
-        int i = 0;
-        while (i++ < target) {
-            y += parent.getCompartmentBaseHeight();
-        }
-        return y;
-
+    private double getPortOriginY(final PortUI ui) {
+        parent.validateLayout();
+        return ui.getOriginY();
     }
 
     public double getPortOriginY(final ProvideUI ui) {
-        return getPortOriginY(provides, ui);
+        return getPortOriginY((PortUI) ui);
     }
 
     public double getWidth() {
@@ -229,25 +352,39 @@ public class CompartmentUI extends AbstractUI implements ISelectable, IKeyUp {
 
     public void addRequire(RequireUI require) {
         requires.add(require);
+        parent.invalidateLayout();
+        parent.contentChanged();
     }
 
     public void removeRequire(RequireUI require) {
         requires.remove(require);
+        parent.invalidateLayout();
+        parent.contentChanged();
     }
 
     public void addProvide(ProvideUI provide) {
         provides.add(provide);
+        parent.invalidateLayout();
+        parent.contentChanged();
     }
 
     public void removeProvide(ProvideUI provide) {
         provides.remove(provide);
+        parent.invalidateLayout();
+        parent.contentChanged();
     }
 
+    /**
+     * @return a read-only view of the requires
+     */
     public List<RequireUI> getRequires() {
-        return new ArrayList<RequireUI>(requires);
+        return requiresView;
     }
 
+    /**
+     * @return a read-only view of the provides
+     */
     public List<ProvideUI> getProvides() {
-        return new ArrayList<ProvideUI>(provides);
+        return providesView;
     }
 }
@@ -16,16 +16,17 @@
 
 package org.peergreen.vaadin.diagram.client.ui;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
-import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
+import org.peergreen.vaadin.diagram.client.DetailLevel;
+import org.peergreen.vaadin.diagram.client.PickBuffer;
+import org.peergreen.vaadin.diagram.client.coordinates.Geometry;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
-import org.peergreen.vaadin.diagram.client.coordinates.Point;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IKeyUp;
+import org.peergreen.vaadin.diagram.client.select.IPickable;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
+import com.google.gwt.canvas.dom.client.Context2d;
 import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyUpEvent;
 
@@ -33,13 +34,20 @@ import com.google.gwt.event.dom.client.KeyUpEvent;
  * Connector allowing the connect two ports.
  * @author Florent Benoit
  */
-public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable {
+public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable, IPickable {
 
     private final PortUI sourcePort;
 
     private final PortUI targetPort;
 
-    public ConnectorUI(ClientStateModel clientStateModel, String id, PortUI sourcePort, final PortUI targetPort) {
+    private final double shadowBlur = 5;
+
+    /**
+     * Distance (in pixels, whatever the zoom) under which the connector is hit.
+     */
+    private final double hitTolerance = 5;
+
+    public ConnectorUI(ClientStateModel clientStateModel, int id, PortUI sourcePort, final PortUI targetPort) {
         super(clientStateModel, id);
         this.sourcePort = sourcePort;
         this.targetPort = targetPort;
@@ -61,6 +69,15 @@ public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable {
 
     @Override
     public void draw() {
+        if (isShown()) {
+            drawConnector();
+        }
+    }
+
+    /**
+     * @return true if the connector is drawn
+     */
+    private boolean isShown() {
 
         // The connector is connected at both ends
 
@@ -71,30 +88,55 @@ public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable {
             // Exception
             // -> If connector is itself selected, draw it
             if (this.equals(getModel().getSelectedUI())) {
-                drawConnector();
+                return true;
             }
 
             // Exception
             // -> if either source or target compartment of this connector are selected
             CompartmentUI sourceCompartment = sourcePort.getCompartment();
             CompartmentUI targetCompartment = targetPort.getCompartment();
-            if (sourceCompartment.equals(getModel().getSelectedUI()) ||
-                    targetCompartment.equals(getModel().getSelectedUI())) {
-                drawConnector();
-            }
-        } else {
-            // Normal draw
-            drawConnector();
+            return sourceCompartment.equals(getModel().getSelectedUI()) ||
+                    targetCompartment.equals(getModel().getSelectedUI());
+        }
+        // Normal draw
+        return true;
+    }
+
+    /**
+     * The line is as wide as the hit tolerance, whatever the zoom.
+     */
+    @Override
+    public void drawPickArea() {
+        // Connectors cannot be hit with a low level of detail, the entities below them can
+        if (!isShown() || getModel().getDetailLevel() == DetailLevel.LOW) {
+            return;
         }
+        getCanvas().save();
+        getCanvas().setStrokeStyle(PickBuffer.getColor(this));
+        getCanvas().setLineWidth(2 * hitTolerance * getModel().getInvertScale());
+        getCanvas().setLineCap(Context2d.LineCap.ROUND);
+        getCanvas().beginPath();
+        getCanvas().moveTo(getPointX(0), getPointY(0));
+        for (int i = 1; i < getPointCount(); i++) {
+            getCanvas().lineTo(getPointX(i), getPointY(i));
+        }
+        getCanvas().stroke();
+        getCanvas().restore();
     }
 
     private void drawConnector() {
         getCanvas().save();
         getCanvas().beginPath();
 
+        // Thin line without shadow with a low level of detail or quality
+        boolean lowDetail = getModel().getDetailLevel() == DetailLevel.LOW || !getModel().getQuality().hasShadows();
+        if (lowDetail) {
+            getCanvas().setLineWidth(getModel().getInvertScale());
+        }
+
         // Highlight if we're over this connector
-        if (this.equals(getModel().getCurrentMouseOverUI())) {
-            getCanvas().setShadowBlur(5);
+        if (!lowDetail && getModel().isMouseOver(this)) {
+            getCanvas().setShadowBlur(shadowBlur);
             getCanvas().setShadowColor("#666");
         }
 
@@ -103,13 +145,73 @@ public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable {
         } else {
             getCanvas().setStrokeStyle("#000");
         }
-        getCanvas().moveTo(sourcePort.getConnectorX(), sourcePort.getConnectorY());
-        getCanvas().lineTo(targetPort.getConnectorX(), targetPort.getConnectorY());
-        getCanvas().closePath();
+        getCanvas().moveTo(getPointX(0), getPointY(0));
+        for (int i = 1; i < getPointCount(); i++) {
+            getCanvas().lineTo(getPointX(i), getPointY(i));
+        }
         getCanvas().stroke();
         getCanvas().restore();
     }
 
+    /**
+     * The connector is drawn as a polyline going through its points, from the source port to the target port.
+     * @return the number of points
+     */
+    public int getPointCount() {
+        return 2;
+    }
+
+    /**
+     * @param index index of the point
+     * @return X coordinate of the point
+     */
+    public double getPointX(int index) {
+        if (index == 0) {
+            return sourcePort.getConnectorX();
+        }
+        return targetPort.getConnectorX();
+    }
+
+    /**
+     * @param index index of the point
+     * @return Y coordinate of the point
+     */
+    public double getPointY(int index) {
+        if (index == 0) {
+            return sourcePort.getConnectorY();
+        }
+        return targetPort.getConnectorY();
+    }
+
+    /**
+     * @param area an area of the diagram
+     * @return true if one of the segments of the connector crosses the area
+     */
+    public boolean intersects(final Rectangle area) {
+        for (int i = 1; i < getPointCount(); i++) {
+            if (Geometry.segmentIntersectsBox(getPointX(i - 1), getPointY(i - 1), getPointX(i), getPointY(i), area)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Invalidated when one of the ports moves and when the scale changes (hit tolerance).
+     */
+    @Override
+    protected boolean isBoundsCached() {
+        return true;
+    }
+
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        for (int i = 0; i < getPointCount(); i++) {
+            bounds.add(getPointX(i), getPointY(i), 0, 0);
+        }
+        bounds.grow(Math.max(shadowBlur, hitTolerance * getModel().getInvertScale()));
+    }
+
     @Override
     public void keyUp(KeyUpEvent event) {
         // Remove the connector
@@ -126,58 +228,32 @@ public class ConnectorUI extends AbstractUI implements IKeyUp, ISelectable {
                 return null;
         }
 
-        // Create a rectangle path around the source and the target and check if it's included
-        getCanvas().beginPath();
-
-        List<IPoint> points = getRectPoints(
-                getModel().scalePoint(sourcePort.getConnectorX(), sourcePort.getConnectorY()),
-                getModel().scalePoint(targetPort.getConnectorX(), targetPort.getConnectorY()));
-
-        // start point
-        getCanvas().moveTo(points.get(0).getX() , points.get(0).getY() );
-        // now connect the points
-        for (IPoint rectPoint : points) {
-            getCanvas().lineTo(rectPoint.getX(), rectPoint.getY());
+        // Hidden internal connectors cannot be hit
+        if (!isShown()) {
+            return null;
         }
 
-        if (getCanvas().isPointInPath(point.getX(), point.getY())) {
-            return this;
+        // Hit if the point is close enough to one of the segments (the tolerance is kept constant on screen)
+        double tolerance = hitTolerance * getModel().getInvertScale();
+        double toleranceSquared = tolerance * tolerance;
+        for (int i = 1; i < getPointCount(); i++) {
+            double distance = Geometry.distanceToSegmentSquared(point.getX(), point.getY(),
+                    getPointX(i - 1), getPointY(i - 1), getPointX(i), getPointY(i));
+            if (distance <= toleranceSquared) {
+                return this;
+            }
         }
         // not found
         return null;
     }
 
-
-    /**
-     * Compute 4 points for building a rectangle around the two given points.
-     * @param source the source point
-     * @param target the target point
-     * @return the 4 points.
-     */
-    protected List<IPoint> getRectPoints(IPoint source, IPoint target) {
-        List<IPoint> points = new ArrayList<IPoint>();
-        double width = target.getX() - source.getX();
-        double height = target.getY() - source.getY();
-
-        double length = Math.sqrt(width * width + height * height);
-        int thickness = 10;
-        double xS = (thickness * height / length ) / 2;
-        double yS = (thickness * width / length) / 2;
-
-        points.add(new Point(source.getX() - xS, source.getY() + yS));
-        points.add(new Point(source.getX() + xS, source.getY() - yS));
-        points.add(new Point(target.getX() + xS, target.getY() - yS));
-        points.add(new Point(target.getX() - xS, target.getY() + yS));
-        return points;
-    }
-
     public boolean isSame(ConnectorUI other) {
         PortUI otherSource = other.getSourcePort();
         PortUI otherTarget = other.getTargetPort();
 
         // this and other are representing the same connector if they have the same extremities
         return ((sourcePort.equals(otherSource) && targetPort.equals(otherTarget))
-                || (sourcePort.equals(otherTarget) && targetPort.equals(sourcePort)));
+                || (sourcePort.equals(otherTarget) && targetPort.equals(otherSource)));
     }
 
 }
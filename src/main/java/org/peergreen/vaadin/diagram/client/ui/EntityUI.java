@@ -17,13 +17,18 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.DetailLevel;
+import org.peergreen.vaadin.diagram.client.PickBuffer;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IKeyUp;
 import org.peergreen.vaadin.diagram.client.move.IMovable;
+import org.peergreen.vaadin.diagram.client.select.IPickable;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
 import com.google.gwt.canvas.dom.client.Context2d;
@@ -31,7 +36,7 @@ import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyUpEvent;
 
 
-public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyUp {
+public class EntityUI extends AbstractUI implements ISelectable, IPickable, IMovable, IKeyUp {
 
 
     private String name;
@@ -48,6 +53,7 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
     private final double radius = 15;
     private final double headerHeight = 25;
     private final double compartmentBaseHeight = 50;
+    private final double shadowBlur = 10;
 
     private final String strokeStyle = "black";
     private final String fillStyle = "white";
@@ -55,8 +61,22 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
 
     private final List<CompartmentUI> compartments = new ArrayList<CompartmentUI>();
 
+    private final List<CompartmentUI> compartmentsView = Collections.unmodifiableList(compartments);
 
-    public EntityUI(ClientStateModel model, String id, int x, int y) {
+    /**
+     * The cached geometry of compartments and ports is up to date.
+     */
+    private boolean layoutValid = false;
+
+    private double compartmentsHeight;
+
+    /**
+     * Incremented each time the appearance of the entity changes (name, compartments, ports, ...).
+     */
+    private int contentVersion = 0;
+
+
+    public EntityUI(ClientStateModel model, int id, int x, int y) {
         super(model, id);
         this.x = x;
         this.y = y;
@@ -68,6 +88,33 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
 
     public void setName(final String name) {
         this.name = name;
+        contentChanged();
+    }
+
+    /**
+     * @return the version of the content of this entity
+     */
+    public int getContentVersion() {
+        return contentVersion;
+    }
+
+    /**
+     * Notifies that the content of the entity (or of its children) has changed.
+     */
+    public void contentChanged() {
+        contentVersion++;
+    }
+
+    /**
+     * @return false if an icon of a compartment is still loading
+     */
+    public boolean isIconsLoaded() {
+        for (int i = 0; i < compartments.size(); i++) {
+            if (!compartments.get(i).isIconLoaded()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public double getCompartmentBaseHeight() {
@@ -81,6 +128,11 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
     @Override
     public void draw() {
 
+        if (getModel().getDetailLevel() == DetailLevel.LOW) {
+            drawPlainBox();
+            return;
+        }
+
         getCanvas().save();
         getCanvas().setFillStyle(fillStyle);
         getCanvas().setStrokeStyle(strokeStyle);
@@ -93,12 +145,29 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
     }
 
     private void drawCompartments() {
-        for (CompartmentUI compartment : compartments) {
-            compartment.draw();
+        for (int i = 0; i < compartments.size(); i++) {
+            CompartmentUI compartment = compartments.get(i);
+            if (getModel().isVisible(compartment.getBounds())) {
+                compartment.draw();
+            }
         }
         //drawCompartment(canvas, lastCompartment, yOffset, x, y);
     }
 
+    /**
+     * Low level of detail: only a filled box, no text, port nor shadow.
+     */
+    private void drawPlainBox() {
+        getCanvas().save();
+        if (this.equals(getModel().getSelectedUI())) {
+            getCanvas().setFillStyle("#1800AB");
+        } else {
+            getCanvas().setFillStyle(headerFillStyle);
+        }
+        getCanvas().fillRect(x, y, width, getHeight());
+        getCanvas().restore();
+    }
+
     private void drawHeader() {
         drawRoundedBox();
         drawTitle();
@@ -108,8 +177,8 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
 
         getCanvas().save();
 
-        if (this.equals(getModel().getCurrentMouseOverUI())) {
-            getCanvas().setShadowBlur(10);
+        if (getModel().isMouseOver(this) && getModel().getQuality().hasShadows()) {
+            getCanvas().setShadowBlur(shadowBlur);
             getCanvas().setShadowColor("#666");
         }
         if (this.equals(getModel().getSelectedUI())) {
@@ -118,6 +187,16 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
             getCanvas().setFillStyle(headerFillStyle);
         }
 
+        traceRoundedBox();
+        getCanvas().fill();
+        getCanvas().stroke();
+        getCanvas().restore();
+    }
+
+    /**
+     * Builds the path of the box: rounded header corners and square bottom corners.
+     */
+    private void traceRoundedBox() {
         getCanvas().beginPath();
         // top horizontal segment
         getCanvas().moveTo(x + radius, y);
@@ -134,12 +213,30 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
         // top left curve
         getCanvas().quadraticCurveTo(x, y, x + radius, y);
         getCanvas().closePath();
+    }
+
+    @Override
+    public void drawPickArea() {
+        getCanvas().save();
+        getCanvas().setFillStyle(PickBuffer.getColor(this));
+        if (getModel().getDetailLevel() == DetailLevel.LOW) {
+            // Same area as the plain box, the compartments cannot be selected
+            getCanvas().fillRect(x, y, width, getHeight());
+            getCanvas().restore();
+            return;
+        }
+        traceRoundedBox();
         getCanvas().fill();
-        getCanvas().stroke();
         getCanvas().restore();
+        for (int i = 0; i < compartments.size(); i++) {
+            compartments.get(i).drawPickArea();
+        }
     }
 
     private void drawTitle() {
+        if (!getModel().getQuality().hasText()) {
+            return;
+        }
         getCanvas().save();
         getCanvas().setFillStyle("white");
         getCanvas().setTextBaseline(Context2d.TextBaseline.MIDDLE);
@@ -152,16 +249,33 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
 
     @Override
     public void moveTo(IPoint point) {
+        // Previous and new locations need to be painted
+        getModel().invalidateEntity(this);
         this.x = point.getX() - offsetX;
         this.y = point.getY() - offsetY;
+        invalidateLayout();
+        getModel().updateEntityBounds(this);
+    }
+
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        bounds.set(x, y, width, getHeight()).grow(shadowBlur);
+        for (int i = 0; i < compartments.size(); i++) {
+            bounds.add(compartments.get(i).getBounds());
+        }
     }
 
 
     @Override
     public UI getSelectedUI(IScaledPoint point) {
+        // Compartments are not drawn with a low level of detail
+        if (getModel().getDetailLevel() == DetailLevel.LOW) {
+            return isMatching(point.getX(), point.getY()) ? this : null;
+        }
+
         // Check Compartments
-        for (CompartmentUI compartment : compartments) {
-            UI ui = compartment.getSelectedUI(point);
+        for (int i = 0; i < compartments.size(); i++) {
+            UI ui = compartments.get(i).getSelectedUI(point);
             if (ui != null) {
                 return ui;
             }
@@ -204,34 +318,70 @@ public class EntityUI extends AbstractUI implements ISelectable, IMovable, IKeyU
 
     public void addCompartment(final CompartmentUI compartment) {
         compartments.add(compartment);
+        invalidateLayout();
+        contentChanged();
     }
 
     public void removeCompartment(final CompartmentUI compartment) {
         compartments.remove(compartment);
+        invalidateLayout();
+        contentChanged();
     }
 
-    public double getCompartmentOriginY(final CompartmentUI ui) {
-        int target = compartments.indexOf(ui);
-        double y = this.y;
-        y += headerHeight;
-        int i = 0;
-        while (i < target) {
-            CompartmentUI compartment = compartments.get(i++);
-            y += compartment.getHeight();
+    /**
+     * Discards the cached geometry of compartments and ports (the entity has moved or its children have changed),
+     * as well as the cached bounds of the entity, of its children and of the connectors attached to them.
+     */
+    public void invalidateLayout() {
+        layoutValid = false;
+        invalidateBounds();
+    }
+
+    @Override
+    public void invalidateBounds() {
+        super.invalidateBounds();
+        for (int i = 0; i < compartments.size(); i++) {
+            compartments.get(i).invalidateBounds();
         }
-        return y;
     }
 
-    public double getCompartmentsHeight() {
-        double total = 0;
-        for (CompartmentUI compartment : compartments) {
-            total += compartment.getHeight();
+    @Override
+    protected boolean isBoundsCached() {
+        return true;
+    }
+
+    /**
+     * Computes the geometry of compartments and ports if needed.
+     */
+    void validateLayout() {
+        if (layoutValid) {
+            return;
         }
-        return total;
+        double originY = this.y + headerHeight;
+        for (int i = 0; i < compartments.size(); i++) {
+            CompartmentUI compartment = compartments.get(i);
+            compartment.layout(originY);
+            originY += compartment.getLayoutHeight();
+        }
+        compartmentsHeight = originY - this.y - headerHeight;
+        layoutValid = true;
+    }
+
+    public double getCompartmentOriginY(final CompartmentUI ui) {
+        validateLayout();
+        return ui.getLayoutY();
+    }
+
+    public double getCompartmentsHeight() {
+        validateLayout();
+        return compartmentsHeight;
     }
 
+    /**
+     * @return a read-only view of the compartments
+     */
     public List<CompartmentUI> getCompartments() {
-        return new ArrayList<CompartmentUI>(compartments);
+        return compartmentsView;
     }
 
 
@@ -18,6 +18,7 @@ package org.peergreen.vaadin.diagram.client.ui;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IGlobalMouseUp;
 
 import com.google.gwt.canvas.dom.client.Context2d;
@@ -28,7 +29,7 @@ public class IntermediateConnectorUI extends AbstractUI implements IGlobalMouseU
     private final PortUI sourcePort;
 
     public IntermediateConnectorUI(ClientStateModel model, PortUI sourcePort) {
-        super(model, "un-used");
+        super(model, NO_ID);
         this.sourcePort = sourcePort;
     }
 
@@ -52,6 +53,18 @@ public class IntermediateConnectorUI extends AbstractUI implements IGlobalMouseU
         canvas.restore();
     }
 
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        double sourceX = sourcePort.getConnectorX();
+        double sourceY = sourcePort.getConnectorY();
+        bounds.set(sourceX, sourceY, 0, 0);
+        IPoint coordinates = getModel().getMouseCoordinates();
+        if (coordinates != null) {
+            bounds.add(coordinates.getX(), coordinates.getY(), 0, 0);
+        }
+        bounds.grow(1);
+    }
+
     @Override
     public void globalMouseUp(MouseUpEvent event) {
         dispose();
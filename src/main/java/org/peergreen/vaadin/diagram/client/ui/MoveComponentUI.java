@@ -23,6 +23,7 @@ import org.peergreen.vaadin.diagram.client.DiagramConnector;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.Point;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IObjectClick;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
@@ -37,6 +38,13 @@ public class MoveComponentUI extends AbstractUI implements ISelectable, IObjectC
     private final DiagramConnector diagramConnector;
     private double circleX;
     private double circleY;
+
+    /**
+     * View (scale and translation) for which the geometry has been computed.
+     */
+    private double computedInvertScale = Double.NaN;
+    private double computedTranslateX;
+    private double computedTranslateY;
     private double radius;
 
 
@@ -46,8 +54,8 @@ public class MoveComponentUI extends AbstractUI implements ISelectable, IObjectC
     private List<IPoint> downArrowPoints;
 
 
-    public MoveComponentUI(DiagramConnector diagramConnector, ClientStateModel clientStateModel, String id) {
-        super(clientStateModel, id);
+    public MoveComponentUI(DiagramConnector diagramConnector, ClientStateModel clientStateModel) {
+        super(clientStateModel, NO_ID);
         this.diagramConnector = diagramConnector;
 
         compute();
@@ -55,6 +63,15 @@ public class MoveComponentUI extends AbstractUI implements ISelectable, IObjectC
 
 
     public void compute() {
+        // Only compute again when the view has changed
+        if (computedInvertScale == getModel().getInvertScale()
+                && computedTranslateX == getModel().getTranslateX()
+                && computedTranslateY == getModel().getTranslateY()) {
+            return;
+        }
+        computedInvertScale = getModel().getInvertScale();
+        computedTranslateX = getModel().getTranslateX();
+        computedTranslateY = getModel().getTranslateY();
 
         // needs to be in the left upper corner
         this.circleX = 35 * getModel().getInvertScale() + getModel().getTranslateX();
@@ -117,8 +134,8 @@ public class MoveComponentUI extends AbstractUI implements ISelectable, IObjectC
     protected void drawPath(List<IPoint> points) {
         getCanvas().beginPath();
         getCanvas().moveTo(points.get(0).getX() , points.get(0).getY() );
-        for (IPoint rectPoint : points) {
-            getCanvas().lineTo(rectPoint.getX(), rectPoint.getY());
+        for (int i = 0; i < points.size(); i++) {
+            getCanvas().lineTo(points.get(i).getX(), points.get(i).getY());
         }
         getCanvas().setFillStyle("#EEE");
         getCanvas().fill();
@@ -192,6 +209,12 @@ public class MoveComponentUI extends AbstractUI implements ISelectable, IObjectC
     }
 
 
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        compute();
+        bounds.set(circleX - radius, circleY - radius, 2 * radius, 2 * radius).grow(getModel().getInvertScale());
+    }
+
     @Override
     public UI getSelectedUI(IScaledPoint point) {
         getCanvas().beginPath();
@@ -16,9 +16,12 @@
 
 package org.peergreen.vaadin.diagram.client.ui;
 
+import java.util.List;
+
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
 import org.peergreen.vaadin.diagram.client.event.IObjectMouseDown;
 import org.peergreen.vaadin.diagram.client.event.IObjectMouseUp;
+import org.peergreen.vaadin.diagram.client.select.IPickable;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
 import com.google.gwt.canvas.dom.client.Context2d;
@@ -30,11 +33,31 @@ import com.google.gwt.event.dom.client.MouseUpEvent;
  * Date: 05/11/13
  * Time: 16:31
  */
-public abstract class PortUI extends AbstractUI implements ISelectable, IObjectMouseDown, IObjectMouseUp {
+public abstract class PortUI extends AbstractUI implements ISelectable, IPickable, IObjectMouseDown, IObjectMouseUp {
     private final CompartmentUI compartment;
     private String name = "";
 
-    public PortUI(final ClientStateModel model, final String id, CompartmentUI compartment) {
+    /**
+     * Font used for the name of the port.
+     */
+    protected static final String LABEL_FONT = "10px sans-serif";
+
+    /**
+     * Height of the name of the port.
+     */
+    protected static final double LABEL_HEIGHT = 12;
+
+    /**
+     * Width of the name (measured once, -1 if not yet measured).
+     */
+    private double labelWidth = -1;
+
+    /**
+     * Y coordinate of the port, computed by the layout of the entity.
+     */
+    private double originY;
+
+    public PortUI(final ClientStateModel model, final int id, CompartmentUI compartment) {
         super(model, id);
         this.compartment = compartment;
     }
@@ -45,12 +68,37 @@ public abstract class PortUI extends AbstractUI implements ISelectable, IObjectM
 
     public void setName(String name) {
         this.name = name;
+        this.labelWidth = -1;
+        // The name is part of the bounds
+        compartment.getEntity().invalidateLayout();
+        compartment.getEntity().contentChanged();
+    }
+
+    /**
+     * @return the width of the name of the port once drawn
+     */
+    protected double getLabelWidth() {
+        if (labelWidth < 0) {
+            if (name == null || "".equals(name)) {
+                labelWidth = 0;
+            } else {
+                getCanvas().save();
+                getCanvas().setFont(LABEL_FONT);
+                labelWidth = getCanvas().measureText(name).getWidth();
+                getCanvas().restore();
+            }
+        }
+        return labelWidth;
     }
 
     @Override
     public void draw() {
+        if (!getModel().getQuality().hasText()) {
+            return;
+        }
         getCanvas().save();
         getCanvas().setFillStyle("black");
+        getCanvas().setFont(LABEL_FONT);
 
         getCanvas().setTextBaseline(Context2d.TextBaseline.BOTTOM);
         getCanvas().fillText(name, getTextX(), getTextY());
@@ -90,6 +138,26 @@ public abstract class PortUI extends AbstractUI implements ISelectable, IObjectM
 
     }
 
+    /**
+     * The attached connectors follow the port.
+     */
+    @Override
+    public void invalidateBounds() {
+        super.invalidateBounds();
+        List<ConnectorUI> connectors = getModel().findConnectors(this);
+        for (int i = 0; i < connectors.size(); i++) {
+            connectors.get(i).invalidateBounds();
+        }
+    }
+
+    /**
+     * Invalidated with the layout of the entity.
+     */
+    @Override
+    protected boolean isBoundsCached() {
+        return true;
+    }
+
     protected abstract boolean isValid(final IntermediateConnectorUI connector);
 
     protected abstract double getTextX();
@@ -100,13 +168,22 @@ public abstract class PortUI extends AbstractUI implements ISelectable, IObjectM
 
     public abstract double getConnectorY();
 
+    double getOriginY() {
+        return originY;
+    }
+
+    void setOriginY(final double originY) {
+        this.originY = originY;
+    }
+
     public CompartmentUI getCompartment() {
         return compartment;
     }
 
     protected boolean isInternallyConnected() {
-        for (ConnectorUI connector : getModel().findConnectors(this)) {
-            if (connector.isInternal()) {
+        List<ConnectorUI> connectors = getModel().findConnectors(this);
+        for (int i = 0; i < connectors.size(); i++) {
+            if (connectors.get(i).isInternal()) {
                 return true;
             }
         }
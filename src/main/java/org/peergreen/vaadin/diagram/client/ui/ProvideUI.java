@@ -17,8 +17,11 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.DetailLevel;
+import org.peergreen.vaadin.diagram.client.PickBuffer;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 
 import com.google.gwt.canvas.dom.client.Context2d;
 
@@ -28,9 +31,10 @@ public class ProvideUI extends PortUI {
     private double length;
     private final double tail = 10;
     private double hypotenuse;
+    private final double shadowBlur = 5;
 
 
-    public ProvideUI(ClientStateModel clientStateModel, String id, CompartmentUI parent) {
+    public ProvideUI(ClientStateModel clientStateModel, int id, CompartmentUI parent) {
         super(clientStateModel, id, parent);
         setLength(20);
     }
@@ -81,8 +85,8 @@ public class ProvideUI extends PortUI {
 
         getCanvas().save();
         getCanvas().setFillStyle(fillStyle);
-        if (this.equals(getModel().getCurrentMouseOverUI())) {
-            getCanvas().setShadowBlur(5);
+        if (getModel().isMouseOver(this) && getModel().getQuality().hasShadows()) {
+            getCanvas().setShadowBlur(shadowBlur);
             getCanvas().setShadowColor("#666");
         }
 
@@ -92,12 +96,7 @@ public class ProvideUI extends PortUI {
         getCanvas().closePath();
         getCanvas().stroke();
 
-        getCanvas().beginPath();
-        double half = length / 2;
-        getCanvas().moveTo(x - tail, y - half);
-        getCanvas().lineTo(x - tail, y + half);
-        getCanvas().lineTo(x - tail - hypotenuse, y);
-        getCanvas().closePath();
+        traceTriangle(x, y);
 
         getCanvas().fill();
         getCanvas().stroke();
@@ -106,6 +105,7 @@ public class ProvideUI extends PortUI {
 
         // Draw something when there are hidden connectors
         if (isInternallyConnected()) {
+            double half = length / 2;
             getCanvas().save();
             getCanvas().setFillStyle("black");
             getCanvas().setTextAlign(Context2d.TextAlign.RIGHT);
@@ -114,8 +114,8 @@ public class ProvideUI extends PortUI {
             getCanvas().restore();
         }
 
-        // draw text
-        if ((getName() != null) && (!"".equals(getName()))) {
+        // draw text (not with a medium level of detail)
+        if ((getName() != null) && (!"".equals(getName())) && getModel().getDetailLevel() == DetailLevel.FULL) {
             getCanvas().save();
             getCanvas().setTextAlign(Context2d.TextAlign.RIGHT);
             super.draw();
@@ -125,6 +125,38 @@ public class ProvideUI extends PortUI {
 
     }
 
+    /**
+     * Builds the path of the triangle, at the end of the tail.
+     */
+    private void traceTriangle(final double x, final double y) {
+        getCanvas().beginPath();
+        double half = length / 2;
+        getCanvas().moveTo(x - tail, y - half);
+        getCanvas().lineTo(x - tail, y + half);
+        getCanvas().lineTo(x - tail - hypotenuse, y);
+        getCanvas().closePath();
+    }
+
+    @Override
+    public void drawPickArea() {
+        getCanvas().save();
+        getCanvas().setFillStyle(PickBuffer.getColor(this));
+        traceTriangle(getX(), getConnectorY());
+        getCanvas().fill();
+        getCanvas().restore();
+    }
+
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        double x = getX();
+        double y = getConnectorY();
+        double half = length / 2;
+        // Triangle and tail, then the name on the left of the tail and the "..." below it
+        bounds.set(x - tail - hypotenuse, y - half, tail + hypotenuse, length + 8);
+        bounds.add(x - tail - getLabelWidth(), getTextY() - LABEL_HEIGHT, getLabelWidth(), LABEL_HEIGHT);
+        bounds.grow(shadowBlur);
+    }
+
     @Override
     public UI getSelectedUI(final IScaledPoint point) {
         return isInside(point) ? this : null;
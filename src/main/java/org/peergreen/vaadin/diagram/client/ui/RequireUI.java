@@ -17,14 +17,18 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.DetailLevel;
+import org.peergreen.vaadin.diagram.client.PickBuffer;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 
 public class RequireUI extends PortUI {
 
     private final float radius = 12.5f;
+    private final double shadowBlur = 5;
 
-    public RequireUI(ClientStateModel clientStateModel, String id, CompartmentUI parent) {
+    public RequireUI(ClientStateModel clientStateModel, int id, CompartmentUI parent) {
         super(clientStateModel, id, parent);
     }
 
@@ -60,20 +64,15 @@ public class RequireUI extends PortUI {
     public void draw() {
         getCanvas().save();
         getCanvas().setFillStyle("#64E986");
-        if (this.equals(getModel().getCurrentMouseOverUI())) {
-            getCanvas().setShadowBlur(5);
+        if (getModel().isMouseOver(this) && getModel().getQuality().hasShadows()) {
+            getCanvas().setShadowBlur(shadowBlur);
             getCanvas().setShadowColor("#666");
         }
 
-        getCanvas().beginPath();
         double x = getX();
         double y = getY();
         double half = getCompartment().getEntity().getCompartmentBaseHeight() / 2;
-        getCanvas().arc(x, y + half,
-                        radius,
-                        Math.PI / 2, 3 * Math.PI / 2,
-                        true);
-        getCanvas().closePath();
+        traceHalfCircle(x, y + half);
 
         getCanvas().stroke();
         getCanvas().fill();
@@ -89,12 +88,44 @@ public class RequireUI extends PortUI {
             getCanvas().restore();
         }
 
-        // draw text
-        if ((getName() != null) && (!"".equals(getName()))) {
+        // draw text (not with a medium level of detail)
+        if ((getName() != null) && (!"".equals(getName())) && getModel().getDetailLevel() == DetailLevel.FULL) {
             super.draw();
         }
 
     }
+
+    /**
+     * Builds the path of the half circle, on the right of its center.
+     */
+    private void traceHalfCircle(final double x, final double y) {
+        getCanvas().beginPath();
+        getCanvas().arc(x, y,
+                        radius,
+                        Math.PI / 2, 3 * Math.PI / 2,
+                        true);
+        getCanvas().closePath();
+    }
+
+    @Override
+    public void drawPickArea() {
+        getCanvas().save();
+        getCanvas().setFillStyle(PickBuffer.getColor(this));
+        traceHalfCircle(getX(), getConnectorY());
+        getCanvas().fill();
+        getCanvas().restore();
+    }
+
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        double x = getX();
+        double y = getConnectorY();
+        // Half circle and the "..." below it, then the name above it
+        bounds.set(x, y - radius, Math.max(radius, 15), 2 * radius + 8);
+        bounds.add(getTextX(), getTextY() - LABEL_HEIGHT, getLabelWidth(), LABEL_HEIGHT);
+        bounds.grow(shadowBlur);
+    }
+
     @Override
     public UI getSelectedUI(final IScaledPoint point) {
         return isInside(point) ? this : null;
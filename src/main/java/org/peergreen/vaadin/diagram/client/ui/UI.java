@@ -16,6 +16,7 @@
 package org.peergreen.vaadin.diagram.client.ui;
 
 import org.peergreen.vaadin.diagram.client.ClientStateModel;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 
 import com.google.gwt.canvas.dom.client.Context2d;
 
@@ -25,16 +26,21 @@ import com.google.gwt.canvas.dom.client.Context2d;
  */
 public interface UI {
 
+    /**
+     * Identifier of UIs that are not bound to a diagram element (navigation components, temporary UIs).
+     */
+    int NO_ID = -1;
+
     /**
      * @return canvas object used to draw objects.
      */
     Context2d getCanvas();
 
     /**
-     * Each UI has an ID.
-     * @return the ID of this UI
+     * Each UI has an ID: the handle of the diagram element it represents.
+     * @return the ID of this UI, or {@link #NO_ID}
      */
-    String getId();
+    int getId();
 
     /**
      * @return client side state model
@@ -46,5 +52,11 @@ public interface UI {
      */
     void draw();
 
+    /**
+     * @return the area (in diagram coordinates) covered by this UI when drawn, shadows and labels included.
+     * The returned rectangle belongs to the UI and is updated on each call.
+     */
+    Rectangle getBounds();
+
 
 }
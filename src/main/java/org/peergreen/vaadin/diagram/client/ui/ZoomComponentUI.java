@@ -20,6 +20,7 @@ import org.peergreen.vaadin.diagram.client.DiagramConnector;
 import org.peergreen.vaadin.diagram.client.coordinates.IPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.IScaledPoint;
 import org.peergreen.vaadin.diagram.client.coordinates.Point;
+import org.peergreen.vaadin.diagram.client.coordinates.Rectangle;
 import org.peergreen.vaadin.diagram.client.event.IObjectClick;
 import org.peergreen.vaadin.diagram.client.select.ISelectable;
 
@@ -35,6 +36,13 @@ public class ZoomComponentUI extends AbstractUI implements ISelectable, IObjectC
     private double circleX;
     private double circleY;
 
+    /**
+     * View (scale and translation) for which the geometry has been computed.
+     */
+    private double computedInvertScale = Double.NaN;
+    private double computedTranslateX;
+    private double computedTranslateY;
+
     private IPoint zoomIn;
     private IPoint zoomOut;
 
@@ -50,8 +58,8 @@ public class ZoomComponentUI extends AbstractUI implements ISelectable, IObjectC
 
 
 
-    public ZoomComponentUI(DiagramConnector diagramConnector, ClientStateModel clientStateModel, String id) {
-        super(clientStateModel, id);
+    public ZoomComponentUI(DiagramConnector diagramConnector, ClientStateModel clientStateModel) {
+        super(clientStateModel, NO_ID);
         this.diagramConnector = diagramConnector;
 
         compute();
@@ -59,6 +67,15 @@ public class ZoomComponentUI extends AbstractUI implements ISelectable, IObjectC
 
 
     public void compute() {
+        // Only compute again when the view has changed
+        if (computedInvertScale == getModel().getInvertScale()
+                && computedTranslateX == getModel().getTranslateX()
+                && computedTranslateY == getModel().getTranslateY()) {
+            return;
+        }
+        computedInvertScale = getModel().getInvertScale();
+        computedTranslateX = getModel().getTranslateX();
+        computedTranslateY = getModel().getTranslateY();
 
         // needs to be in the left upper corner
         this.circleX = 35 * getModel().getInvertScale() + getModel().getTranslateX();
@@ -155,6 +172,12 @@ public class ZoomComponentUI extends AbstractUI implements ISelectable, IObjectC
 
 
 
+    @Override
+    protected void computeBounds(Rectangle bounds) {
+        compute();
+        bounds.set(circleX - radius, circleY - radius, 2 * radius, 2 * radius).grow(getModel().getInvertScale());
+    }
+
     @Override
     public UI getSelectedUI(IScaledPoint point) {
         getCanvas().beginPath();
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.peergreen.vaadin.diagram;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the construction throughput of elements with 1 to 32 threads, with the default
+ * {@link SequentialElementIdGenerator} and with {@link UUID#randomUUID()} (shared SecureRandom).
+ * Run with: {@code java -cp target/classes:target/test-classes:<dependencies>
+ * org.peergreen.vaadin.diagram.ElementConstructionBenchmark [measure seconds]}
+ */
+public class ElementConstructionBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    private static final long WARMUP_MILLIS = 500;
+
+    /**
+     * Prevents the constructions from being optimized away.
+     */
+    private static volatile Object sink;
+
+    public static void main(final String[] args) throws InterruptedException {
+        long measureMillis = 2000;
+        if (args.length > 0) {
+            measureMillis = (long) (Double.parseDouble(args[0]) * 1000);
+        }
+
+        ElementIdGenerator random = new ElementIdGenerator() {
+            @Override
+            public String generateId() {
+                return UUID.randomUUID().toString();
+            }
+        };
+        ElementIdGenerator sequential = new SequentialElementIdGenerator();
+
+        ElementIdGenerator previous = AbstractElement.getIdGenerator();
+        try {
+            System.out.println("threads  randomUUID (ops/s)  sequential (ops/s)  speedup");
+            for (int threads : THREADS) {
+                double randomRate = measure(random, threads, measureMillis);
+                double sequentialRate = measure(sequential, threads, measureMillis);
+                System.out.println(pad(Integer.toString(threads), 7)
+                        + pad(Long.toString(Math.round(randomRate)), 20)
+                        + pad(Long.toString(Math.round(sequentialRate)), 20)
+                        + pad(Double.toString(Math.round(sequentialRate / randomRate * 10) / 10.0) + "x", 9));
+            }
+        } finally {
+            AbstractElement.setIdGenerator(previous);
+        }
+    }
+
+    /**
+     * @return the number of entities built per second by all the threads
+     */
+    private static double measure(final ElementIdGenerator generator, final int threads, final long measureMillis)
+            throws InterruptedException {
+        AbstractElement.setIdGenerator(generator);
+        run(threads, WARMUP_MILLIS);
+        long count = run(threads, measureMillis);
+        return count * 1000.0 / measureMillis;
+    }
+
+    /**
+     * Builds entities with the given number of threads during the given time.
+     * @return the number of entities built
+     */
+    private static long run(final int threads, final long millis) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong total = new AtomicLong();
+        final long[] deadline = new long[1];
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        long end = deadline[0];
+                        long count = 0;
+                        Object last = null;
+                        while (true) {
+                            // Check the time once per batch
+                            for (int j = 0; j < 256; j++) {
+                                last = new Entity("entity");
+                            }
+                            count += 256;
+                            if (System.nanoTime() >= end) {
+                                break;
+                            }
+                        }
+                        sink = last;
+                        total.addAndGet(count);
+                    } finally {
+                        // Never leave the main thread waiting
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1000000L;
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+
+    private static String pad(final String value, final int width) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = value.length(); i < width; i++) {
+            builder.append(' ');
+        }
+        return builder.append(value).toString();
+    }
+}